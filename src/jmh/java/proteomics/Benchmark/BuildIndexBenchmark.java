@@ -0,0 +1,42 @@
+package proteomics.Benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import proteomics.Index.BuildIndex;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildIndexBenchmark {
+
+    private File tempDir;
+    private Map<String, String> parameterMap;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tempDir = SyntheticData.createTempDir();
+        parameterMap = SyntheticData.readParameterMap(tempDir);
+    }
+
+    // Otherwise BuildIndex reads the index cache of the previous invocation.
+    @Setup(Level.Invocation)
+    public void deleteIndexFiles() {
+        SyntheticData.deleteIndexFiles(tempDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.deleteDir(tempDir);
+    }
+
+    @Benchmark
+    public BuildIndex buildIndex() throws Exception {
+        return SyntheticData.buildIndex(parameterMap);
+    }
+}
@@ -0,0 +1,73 @@
+package proteomics.Benchmark;
+
+import ProteomicsLibrary.Types.SparseVector;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import proteomics.Index.PeptideIndex;
+import proteomics.Spectrum.PreSpectra;
+import proteomics.Types.Peptide0;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferPTMBenchmark {
+
+    private static final int peptideNum = 16;
+
+    // The precursor masses carry ptmNum methylations, so that the PTM combinations of that tier fit into the mass window. tryPTM still visits all tiers.
+    @State(Scope.Benchmark)
+    public static class PTMState {
+
+        @Param({"1", "2", "3", "4", "5"})
+        int ptmNum;
+
+        List<String> peptideList;
+        char[] leftFlankArray = new char[peptideNum];
+        char[] rightFlankArray = new char[peptideNum];
+        double[] precursorMassArray = new double[peptideNum];
+        List<TreeMap<Double, Double>> plMapList = new ArrayList<>(peptideNum);
+        SparseVector[] expProcessedPLArray = new SparseVector[peptideNum];
+        double[] localMS1ToleranceLArray = new double[peptideNum];
+        double[] localMS1ToleranceRArray = new double[peptideNum];
+        int localMaxMs2Charge;
+
+        @Setup(Level.Trial)
+        public void setUp(SearchState state) {
+            double minClear = Double.valueOf(state.parameterMap.get("min_clear_mz"));
+            double maxClear = Double.valueOf(state.parameterMap.get("max_clear_mz"));
+            PeptideIndex peptideIndex = state.buildIndex.getPeptideIndex();
+            Random random = new Random(SyntheticData.seed + ptmNum);
+            peptideList = SyntheticData.pickPeptides(peptideIndex, peptideNum, 10, random);
+            localMaxMs2Charge = state.localMaxMs2ChargeArray[0];
+            for (int i = 0; i < peptideNum; ++i) {
+                String peptide = peptideList.get(i);
+                Peptide0 peptide0 = peptideIndex.getPeptide0(peptide);
+                leftFlankArray[i] = peptide0.leftFlank;
+                rightFlankArray[i] = peptide0.rightFlank;
+                precursorMassArray[i] = SyntheticData.calPrecursorMass(peptide, state.massTool) + ptmNum * SyntheticData.methylMass;
+                TreeMap<Double, Double> plMap = state.preSpectrum.preSpectrumTopNStyle(SyntheticData.buildPeakList(peptide, state.massTool, random), precursorMassArray[i], SyntheticData.precursorCharge, minClear, maxClear, PreSpectra.topN);
+                plMapList.add(plMap);
+                expProcessedPLArray[i] = state.preSpectrum.prepareXCorr(plMap, false);
+                localMS1ToleranceLArray[i] = -1 * state.ms1Tolerance;
+                localMS1ToleranceRArray[i] = state.ms1Tolerance;
+                if (state.ms1ToleranceUnit == 1) {
+                    localMS1ToleranceLArray[i] = (precursorMassArray[i] * state.leftInverseMs1Tolerance) - precursorMassArray[i];
+                    localMS1ToleranceRArray[i] = (precursorMassArray[i] * state.rightInverseMs1Tolerance) - precursorMassArray[i];
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(peptideNum)
+    public void tryPTM(SearchState state, PTMState ptmState, Blackhole blackhole) {
+        for (int i = 0; i < peptideNum; ++i) {
+            blackhole.consume(state.inferPTM.tryPTM(ptmState.expProcessedPLArray[i], ptmState.plMapList.get(i), ptmState.precursorMassArray[i], ptmState.peptideList.get(i), false, 0.5, ptmState.leftFlankArray[i], ptmState.rightFlankArray[i], 1, SyntheticData.precursorCharge, ptmState.localMaxMs2Charge, ptmState.localMS1ToleranceLArray[i], ptmState.localMS1ToleranceRArray[i]));
+        }
+    }
+}
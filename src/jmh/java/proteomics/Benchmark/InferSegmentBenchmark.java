@@ -0,0 +1,38 @@
+package proteomics.Benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferSegmentBenchmark {
+
+    @Benchmark
+    @OperationsPerInvocation(SearchState.spectrumNum)
+    public void inferSegmentLocationFromSpectrum(SearchState state, Blackhole blackhole) throws Exception {
+        for (int i = 0; i < SearchState.spectrumNum; ++i) {
+            blackhole.consume(state.inferSegment.inferSegmentLocationFromSpectrum(state.precursorMassArray[i], state.plMapList.get(i)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SearchState.spectrumNum)
+    public void generateSegmentIntensityVector(SearchState state, Blackhole blackhole) {
+        for (int i = 0; i < SearchState.spectrumNum; ++i) {
+            blackhole.consume(state.inferSegment.generateSegmentIntensityVector(state.expAaListsList.get(i)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SearchState.spectrumNum)
+    public void generateSegmentCode(SearchState state, Blackhole blackhole) {
+        for (String sequence : state.sequenceOnlyList) {
+            blackhole.consume(state.inferSegment.generateSegmentCode(sequence));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package proteomics.Benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import proteomics.Types.Peptide;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PeptideBenchmark {
+
+    // A Peptide caches its ion matrix, so every call starts from a new object, the same as the candidates of Search.
+    @Benchmark
+    @OperationsPerInvocation(SearchState.spectrumNum)
+    public void getIonMatrix(SearchState state, Blackhole blackhole) {
+        for (int i = 0; i < SearchState.spectrumNum; ++i) {
+            blackhole.consume(new Peptide(state.peptideList.get(i), false, state.massTool, state.localMaxMs2ChargeArray[i], 0.5, 1).getIonMatrix());
+        }
+    }
+}
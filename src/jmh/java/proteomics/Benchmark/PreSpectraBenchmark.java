@@ -0,0 +1,59 @@
+package proteomics.Benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import proteomics.Spectrum.PreSpectra;
+import proteomics.Spectrum.SpectrumStore;
+import proteomics.Store.ColumnarResultStore;
+import uk.ac.ebi.pride.tools.mgf_parser.MgfFile;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreSpectraBenchmark {
+
+    private static final int spectrumNum = 1000;
+
+    private File tempDir;
+    private File mgfFile;
+    private int invocationNum = 0;
+    private SpectrumStore spectrumStore;
+    private Set<Integer> msLevelSet = new HashSet<>(Collections.singletonList(2));
+
+    @Setup(Level.Trial)
+    public void setUp(SearchState state) throws Exception {
+        tempDir = SyntheticData.createTempDir();
+        mgfFile = new File(tempDir, "synthetic.mgf");
+        Random random = new Random(SyntheticData.seed);
+        SyntheticData.writeMgf(mgfFile, SyntheticData.pickPeptides(state.buildIndex.getPeptideIndex(), spectrumNum, 7, random), state.massTool, random);
+    }
+
+    // Every invocation writes a store file of its own. The file of the previous invocation may still be mapped, so it is only deleted with tempDir.
+    @Setup(Level.Invocation)
+    public void createSpectrumStore() throws Exception {
+        ++invocationNum;
+        spectrumStore = new SpectrumStore(new File(tempDir, "synthetic.mgf." + invocationNum + ".pl").getAbsolutePath());
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeSpectrumStore() throws Exception {
+        spectrumStore.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.deleteDir(tempDir);
+    }
+
+    // Parsing the MGF file and keeping the peak lists in a spectrum store, the same as the "Reading spectra" step of PIPI.
+    @Benchmark
+    public PreSpectra ingest(SearchState state) throws Exception {
+        return new PreSpectra(new MgfFile(mgfFile), state.ms1Tolerance, state.ms1ToleranceUnit, state.massTool, "mgf", msLevelSet, new ColumnarResultStore(), spectrumStore);
+    }
+}
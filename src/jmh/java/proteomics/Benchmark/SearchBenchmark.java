@@ -0,0 +1,25 @@
+package proteomics.Benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import proteomics.Search.Search;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Benchmark
+    @OperationsPerInvocation(SearchState.spectrumNum)
+    public void search(SearchState state, Blackhole blackhole) {
+        double minPtmMass = state.inferPTM.getMinPtmMass();
+        double maxPtmMass = state.inferPTM.getMaxPtmMass();
+        for (int i = 0; i < SearchState.spectrumNum; ++i) {
+            blackhole.consume(new Search(state.buildIndex, state.precursorMassArray[i], state.scanCodeArray[i], state.massTool, state.ms1Tolerance, state.leftInverseMs1Tolerance, state.rightInverseMs1Tolerance, state.ms1ToleranceUnit, minPtmMass, maxPtmMass, state.localMaxMs2ChargeArray[i]));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package proteomics.Benchmark;
+
+import ProteomicsLibrary.DbTool;
+import ProteomicsLibrary.MassTool;
+import ProteomicsLibrary.PrepareSpectrum;
+import ProteomicsLibrary.Types.SparseVector;
+import org.openjdk.jmh.annotations.*;
+import proteomics.Index.BuildIndex;
+import proteomics.PTM.InferPTM;
+import proteomics.Segment.InferSegment;
+import proteomics.Spectrum.PreSpectra;
+import proteomics.Types.ThreeExpAA;
+
+import java.io.File;
+import java.util.*;
+
+// The index of the bundled contaminant proteins and synthetic spectra of its target peptides, preprocessed the same way as PIPIWrap does.
+@State(Scope.Benchmark)
+public class SearchState {
+
+    static final int spectrumNum = 64;
+
+    File tempDir;
+    Map<String, String> parameterMap;
+    BuildIndex buildIndex;
+    MassTool massTool;
+    InferSegment inferSegment;
+    InferPTM inferPTM;
+    PrepareSpectrum preSpectrum;
+    double ms1Tolerance;
+    double leftInverseMs1Tolerance;
+    double rightInverseMs1Tolerance;
+    int ms1ToleranceUnit;
+    double ms2Tolerance;
+
+    List<String> peptideList;
+    List<String> sequenceOnlyList = new ArrayList<>(spectrumNum); // without the n and c terminal symbols, the input of InferSegment.generateSegmentCode.
+    double[] precursorMassArray = new double[spectrumNum];
+    List<TreeMap<Double, Double>> rawPLMapList = new ArrayList<>(spectrumNum);
+    List<TreeMap<Double, Double>> plMapList = new ArrayList<>(spectrumNum);
+    List<List<ThreeExpAA>> expAaListsList = new ArrayList<>(spectrumNum);
+    SparseVector[] scanCodeArray = new SparseVector[spectrumNum];
+    int[] localMaxMs2ChargeArray = new int[spectrumNum];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tempDir = SyntheticData.createTempDir();
+        parameterMap = SyntheticData.readParameterMap(tempDir);
+        buildIndex = SyntheticData.buildIndex(parameterMap);
+        massTool = buildIndex.returnMassTool();
+        inferSegment = buildIndex.getInferSegment();
+        inferPTM = buildIndex.getInferPTM();
+        preSpectrum = new PrepareSpectrum(massTool);
+        ms1Tolerance = Double.valueOf(parameterMap.get("ms1_tolerance"));
+        leftInverseMs1Tolerance = 1 / (1 + ms1Tolerance * 1e-6);
+        rightInverseMs1Tolerance = 1 / (1 - ms1Tolerance * 1e-6);
+        ms1ToleranceUnit = Integer.valueOf(parameterMap.get("ms1_tolerance_unit"));
+        ms2Tolerance = Double.valueOf(parameterMap.get("ms2_tolerance"));
+        double minClear = Double.valueOf(parameterMap.get("min_clear_mz"));
+        double maxClear = Double.valueOf(parameterMap.get("max_clear_mz"));
+
+        Random random = new Random(SyntheticData.seed);
+        peptideList = SyntheticData.pickPeptides(buildIndex.getPeptideIndex(), spectrumNum, 7, random);
+        for (int i = 0; i < spectrumNum; ++i) {
+            String peptide = peptideList.get(i);
+            sequenceOnlyList.add(DbTool.getSequenceOnly(peptide));
+            precursorMassArray[i] = SyntheticData.calPrecursorMass(peptide, massTool);
+            TreeMap<Double, Double> rawPLMap = SyntheticData.buildPeakList(peptide, massTool, random);
+            TreeMap<Double, Double> plMap = preSpectrum.preSpectrumTopNStyle(rawPLMap, precursorMassArray[i], SyntheticData.precursorCharge, minClear, maxClear, PreSpectra.topN);
+            List<ThreeExpAA> expAaLists = inferSegment.inferSegmentLocationFromSpectrum(precursorMassArray[i], plMap);
+            rawPLMapList.add(rawPLMap);
+            plMapList.add(plMap);
+            expAaListsList.add(expAaLists);
+            scanCodeArray[i] = inferSegment.generateSegmentIntensityVector(expAaLists);
+            localMaxMs2ChargeArray[i] = Math.min(SyntheticData.precursorCharge > 1 ? SyntheticData.precursorCharge - 1 : 1, 3); // the same as PIPIWrap.getLocalMaxMs2Charge
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticData.deleteDir(tempDir);
+    }
+}
@@ -0,0 +1,123 @@
+package proteomics.Benchmark;
+
+import ProteomicsLibrary.MassTool;
+import proteomics.Index.BuildIndex;
+import proteomics.Index.PeptideIndex;
+import proteomics.Parameter.Parameter;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+// Deterministic inputs of the benchmarks. The peptides come from the bundled contaminant proteins and the spectra are generated from them with a fixed seed.
+final class SyntheticData {
+
+    static final long seed = 1L;
+    static final int precursorCharge = 2;
+    static final double methylMass = 14.01565; // the PTM used to shift the precursor masses of the PTM benchmarks. Most residues can carry it.
+
+    private static final int noisePeakNum = 100;
+
+    private SyntheticData() {}
+
+    static File createTempDir() throws IOException {
+        return Files.createTempDirectory("pipi-benchmark").toFile();
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // The bundled parameter file with the bundled contaminant proteins as the database. The files are copied into dir.
+    static Map<String, String> readParameterMap(File dir) throws Exception {
+        File parameterFile = copyResource("parameter.def", dir);
+        File dbFile = copyResource("contaminants.fasta", dir);
+        Map<String, String> parameterMap = new Parameter(parameterFile.getAbsolutePath()).returnParameterMap();
+        parameterMap.put("db", dbFile.getAbsolutePath());
+        parameterMap.put("database_type", "contaminants");
+        parameterMap.put("add_contaminant", "0");
+        return parameterMap;
+    }
+
+    static BuildIndex buildIndex(Map<String, String> parameterMap) throws Exception {
+        return new BuildIndex(parameterMap, "N14", true, parameterMap.get("add_decoy").contentEquals("1"), false);
+    }
+
+    // Removes the decoy database and the index cache written by BuildIndex so that the next build starts from the fasta file again.
+    static void deleteIndexFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".TD.fasta") || file.getName().endsWith(".pipi.index")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // Target peptides with at least minLength amino acids. The sequences contain the n and c terminal symbols.
+    static List<String> pickPeptides(PeptideIndex peptideIndex, int num, int minLength, Random random) {
+        List<String> peptideList = new ArrayList<>(num);
+        for (int i = 0; i < 1000 * num && peptideList.size() < num; ++i) {
+            int ordinal = random.nextInt(peptideIndex.size());
+            String peptide = peptideIndex.getSequence(ordinal);
+            if (peptideIndex.isTarget(ordinal) && peptide.length() - 2 >= minLength) {
+                peptideList.add(peptide);
+            }
+        }
+        if (peptideList.size() < num) {
+            throw new IllegalStateException(String.format(Locale.US, "There are not enough peptides with at least %d amino acids.", minLength));
+        }
+        return peptideList;
+    }
+
+    static double calPrecursorMass(String peptide, MassTool massTool) {
+        return massTool.calResidueMass(peptide) + massTool.H2O;
+    }
+
+    // 80% of the b and y ions up to charge 2 plus uniformly distributed noise peaks, which are weaker than the fragment ions on average.
+    static TreeMap<Double, Double> buildPeakList(String peptide, MassTool massTool, Random random) {
+        TreeMap<Double, Double> peakList = new TreeMap<>();
+        for (double[] ionArray : massTool.buildIonArray(peptide, precursorCharge)) {
+            for (double mz : ionArray) {
+                if (random.nextDouble() < 0.8) {
+                    peakList.put(mz, 3000 + 7000 * random.nextDouble());
+                }
+            }
+        }
+        for (int i = 0; i < noisePeakNum; ++i) {
+            peakList.put(100 + 1900 * random.nextDouble(), 3000 * random.nextDouble());
+        }
+        return peakList;
+    }
+
+    static void writeMgf(File file, List<String> peptideList, MassTool massTool, Random random) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < peptideList.size(); ++i) {
+                String peptide = peptideList.get(i);
+                writer.write("BEGIN IONS\n");
+                writer.write(String.format(Locale.US, "TITLE=synthetic.%d.%d.%d\n", i + 1, i + 1, precursorCharge));
+                writer.write(String.format(Locale.US, "PEPMASS=%.6f\n", calPrecursorMass(peptide, massTool) / precursorCharge + MassTool.PROTON));
+                writer.write(String.format(Locale.US, "CHARGE=%d+\n", precursorCharge));
+                for (Map.Entry<Double, Double> peak : buildPeakList(peptide, massTool, random).entrySet()) {
+                    writer.write(String.format(Locale.US, "%.5f %.1f\n", peak.getKey(), peak.getValue()));
+                }
+                writer.write("END IONS\n");
+            }
+        }
+    }
+
+    private static File copyResource(String name, File dir) throws IOException {
+        File file = new File(dir, name);
+        try (InputStream inputStream = SyntheticData.class.getClassLoader().getResourceAsStream(name)) {
+            Files.copy(inputStream, file.toPath());
+        }
+        return file;
+    }
+}
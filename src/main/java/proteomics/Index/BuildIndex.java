@@ -1,26 +1,31 @@
 package proteomics.Index;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import proteomics.PTM.InferPTM;
 import proteomics.Segment.InferSegment;
 import ProteomicsLibrary.*;
 import ProteomicsLibrary.Types.*;
-import proteomics.Types.Peptide0;
 
 public class BuildIndex {
 
+    private static final Logger logger = LoggerFactory.getLogger(BuildIndex.class);
+
     private final MassTool massTool;
     private Map<Character, Double> fixModMap = new HashMap<>(25, 1);
-    private double minPeptideMass = 9999;
-    private double maxPeptideMass = 0;
     private InferSegment inferSegment;
-    private TreeMap<Double, Set<String>> massPeptideMap = new TreeMap<>();
-    private Map<String, Peptide0> peptide0Map;
+    private PeptideIndex peptideIndex;
     private final String labelling;
     private final DbTool dbTool; // this one doesn't contain contaminant proteins.
     private InferPTM inferPTM;
@@ -81,25 +86,69 @@ public class BuildIndex {
         // build database
         inferSegment = new InferSegment(massTool, parameterMap, fixModMap);
 
-        Set<String> forCheckDuplicate = new HashSet<>(500000);
-        Multimap<String, String> peptideProteinMap = HashMultimap.create();
-        Map<String, Double> peptideMassMap = new HashMap<>(500000);
-        Map<String, String> targetDecoyProteinSequenceMap = new HashMap<>();
-        for (String proId : proteinPeptideMap.keySet()) {
-            String proSeq = proteinPeptideMap.get(proId);
-            Set<String> peptideSet = massTool.buildPeptideSet(proSeq);
-
-            for (String peptide : peptideSet) {
-                if (MassTool.containsNonAAAndNC(peptide)) {
-                    continue;
-                }
+        // Reuse the index of an earlier run if the database and the digestion parameters are the same. The decoy sequences are only consistent with the existing TD.fasta in that case.
+        String cacheKey = PeptideIndexCache.calKey(dbPath, parameterMap, fixModMap, labelling, needCoding, addDecoy, addContaminant);
+        File cacheFile = PeptideIndexCache.getCacheFile(dbPath, cacheKey);
+        String tdFastaPath = dbPath + ".TD.fasta";
+        if (cacheFile.exists() && (!addDecoy || (new File(tdFastaPath)).exists())) {
+            try {
+                peptideIndex = PeptideIndexCache.read(cacheFile, cacheKey, addDecoy ? PeptideIndexCache.calFileHash(tdFastaPath) : PeptideIndexCache.noFileHash);
+            } catch (Exception ex) { // a corrupt file may fail in any way. Build the index again.
+                logger.warn("Cannot read the peptide index from {}: {}", cacheFile.getAbsolutePath(), ex.toString());
+                peptideIndex = null;
+            }
+        }
 
-                if ((peptide.length() - 2 <= maxPeptideLength) && (peptide.length() - 2 >= minPeptideLength)) { // caution: there are n and c in the sequence
-                    if (!forCheckDuplicate.contains(peptide.replace('L', 'I'))) { // don't record duplicate peptide sequences
-                        // Add the sequence to the check set for duplicate check
-                        forCheckDuplicate.add(peptide.replace('L', 'I'));
+        if (peptideIndex == null) {
+            peptideIndex = buildPeptideIndex(parameterMap, proteinPeptideMap, contaminantsDb, dbPath, minPeptideLength, maxPeptideLength, needCoding, addDecoy, addContaminant);
+            try {
+                PeptideIndexCache.write(cacheFile, cacheKey, addDecoy ? PeptideIndexCache.calFileHash(tdFastaPath) : PeptideIndexCache.noFileHash, peptideIndex);
+            } catch (IOException ex) {
+                logger.warn("Cannot save the peptide index to {}: {}", cacheFile.getAbsolutePath(), ex.toString());
+            }
+        } else {
+            logger.info("Loaded {} peptides from {}.", peptideIndex.size(), cacheFile.getAbsolutePath());
+        }
+    }
 
-                        double mass = massTool.calResidueMass(peptide) + massTool.H2O;
+    private PeptideIndex buildPeptideIndex(Map<String, String> parameterMap, Map<String, String> proteinPeptideMap, DbTool contaminantsDb, String dbPath, int minPeptideLength, int maxPeptideLength, boolean needCoding, boolean addDecoy, boolean addContaminant) throws Exception {
+        int threadNum = Integer.valueOf(parameterMap.getOrDefault("thread_num", "0"));
+        if (threadNum == 0) {
+            threadNum = 3 + Runtime.getRuntime().availableProcessors();
+        }
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threadNum);
+        try {
+            // Digest the proteins and their decoys in parallel. Each protein only writes its own slots.
+            String[] proIdArray = proteinPeptideMap.keySet().toArray(new String[0]);
+            String[][] targetPeptidesArray = new String[proIdArray.length][];
+            double[][] targetMassesArray = new double[proIdArray.length][];
+            String[] decoyProSeqArray = new String[proIdArray.length];
+            String[][] decoyPeptidesArray = new String[proIdArray.length][];
+            double[][] decoyMassesArray = new double[proIdArray.length][];
+            parallelFor(forkJoinPool, proIdArray.length, i -> {
+                String proSeq = proteinPeptideMap.get(proIdArray[i]);
+                targetPeptidesArray[i] = digest(proSeq, minPeptideLength, maxPeptideLength);
+                targetMassesArray[i] = calMasses(targetPeptidesArray[i]);
+                if (addDecoy) {
+                    decoyProSeqArray[i] = DbTool.shuffleSeq(proSeq, parameterMap.get("cleavage_site_1"), parameterMap.get("protection_site_1"), Integer.valueOf(parameterMap.get("is_from_C_term_1")) == 1); // FixMe: Only consider the first enzyme if the users specify two enzymes.
+                    decoyPeptidesArray[i] = digest(decoyProSeqArray[i], minPeptideLength, maxPeptideLength);
+                    decoyMassesArray[i] = calMasses(decoyPeptidesArray[i]);
+                }
+            });
+
+            // Merge in the protein order. The duplicate check and the target-over-decoy priority depend on the order, so this part is serial. It only does hash lookups.
+            double minPeptideMass = 9999;
+            double maxPeptideMass = 0;
+            Set<String> forCheckDuplicate = new HashSet<>(500000);
+            Multimap<String, String> peptideProteinMap = HashMultimap.create();
+            Map<String, Double> peptideMassMap = new HashMap<>(500000);
+            Map<String, String> targetDecoyProteinSequenceMap = new HashMap<>();
+            for (int i = 0; i < proIdArray.length; ++i) {
+                String proId = proIdArray[i];
+                for (int j = 0; j < targetPeptidesArray[i].length; ++j) {
+                    String peptide = targetPeptidesArray[i][j];
+                    if (forCheckDuplicate.add(peptide.replace('L', 'I'))) { // don't record duplicate peptide sequences
+                        double mass = targetMassesArray[i][j];
                         // recode min and max peptide mass
                         if (mass < minPeptideMass) {
                             minPeptideMass = mass;
@@ -122,26 +171,14 @@ public class BuildIndex {
                         peptideProteinMap.put(peptide, proId);
                     }
                 }
-            }
 
-            targetDecoyProteinSequenceMap.put(proId, proSeq);
+                targetDecoyProteinSequenceMap.put(proId, proteinPeptideMap.get(proId));
 
-            if (addDecoy) {
-                // decoy sequence
-                String decoyProSeq = DbTool.shuffleSeq(proSeq, parameterMap.get("cleavage_site_1"), parameterMap.get("protection_site_1"), Integer.valueOf(parameterMap.get("is_from_C_term_1")) == 1); // FixMe: Only consider the first enzyme if the users specify two enzymes.
-                peptideSet = massTool.buildPeptideSet(decoyProSeq);
-
-                for (String peptide : peptideSet) {
-                    if (MassTool.containsNonAAAndNC(peptide)) {
-                        continue;
-                    }
-
-                    if ((peptide.length() - 2 <= maxPeptideLength) && (peptide.length() - 2 >= minPeptideLength)) { // caution: there are n and c in the sequence
-                        if (!forCheckDuplicate.contains(peptide.replace('L', 'I'))) { // don't record duplicate peptide sequences
-                            // Add the sequence to the check set for duplicate check
-                            forCheckDuplicate.add(peptide.replace('L', 'I'));
-
-                            double mass = massTool.calResidueMass(peptide) + massTool.H2O;
+                if (addDecoy) {
+                    for (int j = 0; j < decoyPeptidesArray[i].length; ++j) {
+                        String peptide = decoyPeptidesArray[i][j];
+                        if (forCheckDuplicate.add(peptide.replace('L', 'I'))) { // don't record duplicate peptide sequences
+                            double mass = decoyMassesArray[i][j];
                             // recode min and max peptide mass
                             if (mass < minPeptideMass) {
                                 minPeptideMass = mass;
@@ -154,50 +191,139 @@ public class BuildIndex {
                             peptideProteinMap.put(peptide, "DECOY_" + proId);
                         }
                     }
+                    targetDecoyProteinSequenceMap.put("DECOY_" + proId, decoyProSeqArray[i]);
                 }
-                targetDecoyProteinSequenceMap.put("DECOY_" + proId, decoyProSeq);
             }
-        }
 
-        if (addDecoy) {
-            // writer concatenated fasta
-            Map<String, String> proteinAnnotationMap;
-            if (addContaminant) {
-                proteinAnnotationMap = contaminantsDb.getProteinAnnotateMap();
-                proteinAnnotationMap.putAll(dbTool.getProteinAnnotateMap()); // using the target annotation to replace contaminant sequence if there is conflict.
-            } else {
-                proteinAnnotationMap = dbTool.getProteinAnnotateMap();
-            }
+            if (addDecoy) {
+                // writer concatenated fasta
+                Map<String, String> proteinAnnotationMap;
+                if (addContaminant) {
+                    proteinAnnotationMap = contaminantsDb.getProteinAnnotateMap();
+                    proteinAnnotationMap.putAll(dbTool.getProteinAnnotateMap()); // using the target annotation to replace contaminant sequence if there is conflict.
+                } else {
+                    proteinAnnotationMap = dbTool.getProteinAnnotateMap();
+                }
 
-            BufferedWriter writer = new BufferedWriter(new FileWriter(dbPath + ".TD.fasta"));
-            for (String proId : targetDecoyProteinSequenceMap.keySet()) {
-                writer.write(String.format(Locale.US, ">%s %s\n", proId, proteinAnnotationMap.getOrDefault(proId, "")));
-                writer.write(targetDecoyProteinSequenceMap.get(proId) + "\n");
+                BufferedWriter writer = new BufferedWriter(new FileWriter(dbPath + ".TD.fasta"));
+                for (String proId : targetDecoyProteinSequenceMap.keySet()) {
+                    writer.write(String.format(Locale.US, ">%s %s\n", proId, proteinAnnotationMap.getOrDefault(proId, "")));
+                    writer.write(targetDecoyProteinSequenceMap.get(proId) + "\n");
+                }
+                writer.close();
             }
-            writer.close();
-        }
 
-        Map<String, Peptide0> tempMap = new HashMap<>();
-        for (String peptide : peptideMassMap.keySet()) {
-            SparseBooleanVector code = null;
-            if (needCoding) {
-                code = inferSegment.generateSegmentBooleanVector(DbTool.getSequenceOnly(peptide));
+            // Sort by mass. The sequence breaks mass ties so that the order is deterministic.
+            String[] sortedPeptideArray = peptideMassMap.keySet().toArray(new String[0]);
+            Arrays.sort(sortedPeptideArray, Comparator.comparingDouble((String peptide) -> peptideMassMap.get(peptide)).thenComparing(Comparator.naturalOrder()));
+
+            // Resolve the flanks and the codes in parallel. Both only read the finished maps.
+            Character[][] leftRightFlankArray = new Character[sortedPeptideArray.length][];
+            int[][] codeArray = new int[sortedPeptideArray.length][];
+            parallelFor(forkJoinPool, sortedPeptideArray.length, i -> {
+                String peptide = sortedPeptideArray[i];
+                leftRightFlankArray[i] = DbTool.getLeftRightFlank(peptide, peptideProteinMap, targetDecoyProteinSequenceMap, parameterMap.get("cleavage_site_1"), parameterMap.get("protection_site_1"), parameterMap.get("is_from_C_term_1").contentEquals("1")); // FixMe: Only consider the first enzyme if the users specify two enzymes.
+                if (needCoding && leftRightFlankArray[i] != null) {
+                    codeArray[i] = inferSegment.generateSegmentCode(DbTool.getSequenceOnly(peptide));
+                }
+            });
+
+            // Pack the peptides into a mass-sorted primitive index.
+            int seqArenaSize = 0;
+            int codeArenaSize = 0;
+            for (int i = 0; i < sortedPeptideArray.length; ++i) {
+                if (leftRightFlankArray[i] != null) {
+                    seqArenaSize += sortedPeptideArray[i].length();
+                    if (needCoding) {
+                        codeArenaSize += codeArray[i].length;
+                    }
+                }
             }
+            int peptideNum = 0;
+            double[] massArray = new double[sortedPeptideArray.length];
+            boolean[] isTargetArray = new boolean[sortedPeptideArray.length];
+            char[] leftFlankArray = new char[sortedPeptideArray.length];
+            char[] rightFlankArray = new char[sortedPeptideArray.length];
+            int[] seqOffsetArray = new int[sortedPeptideArray.length + 1];
+            byte[] seqArena = new byte[seqArenaSize];
+            int[] proteinOffsetArray = new int[sortedPeptideArray.length + 1];
+            int[] proteinArena = new int[sortedPeptideArray.length * 2];
+            Map<String, Integer> proteinIdxMap = new HashMap<>();
+            List<String> proteinTableList = new ArrayList<>();
+            int[] codeOffsetArray = new int[sortedPeptideArray.length + 1];
+            int[] codeArena = new int[codeArenaSize];
+            for (int k = 0; k < sortedPeptideArray.length; ++k) {
+                Character[] leftRightFlank = leftRightFlankArray[k];
+                if (leftRightFlank != null) {
+                    String peptide = sortedPeptideArray[k];
+                    massArray[peptideNum] = peptideMassMap.get(peptide);
+                    isTargetArray[peptideNum] = isTarget(peptideProteinMap.get(peptide));
+                    leftFlankArray[peptideNum] = leftRightFlank[0];
+                    rightFlankArray[peptideNum] = leftRightFlank[1];
+
+                    int seqOffset = seqOffsetArray[peptideNum];
+                    for (int i = 0; i < peptide.length(); ++i) {
+                        seqArena[seqOffset + i] = (byte) peptide.charAt(i);
+                    }
+                    seqOffsetArray[peptideNum + 1] = seqOffset + peptide.length();
 
-            Character[] leftRightFlank = DbTool.getLeftRightFlank(peptide, peptideProteinMap, targetDecoyProteinSequenceMap, parameterMap.get("cleavage_site_1"), parameterMap.get("protection_site_1"), parameterMap.get("is_from_C_term_1").contentEquals("1")); // FixMe: Only consider the first enzyme if the users specify two enzymes.
-            if (leftRightFlank != null) {
-                tempMap.put(peptide, new Peptide0(code, isTarget(peptideProteinMap.get(peptide)), peptideProteinMap.get(peptide).toArray(new String[0]), leftRightFlank[0], leftRightFlank[1]));
+                    int proteinOffset = proteinOffsetArray[peptideNum];
+                    Collection<String> proteins = peptideProteinMap.get(peptide);
+                    if (proteinOffset + proteins.size() > proteinArena.length) {
+                        proteinArena = Arrays.copyOf(proteinArena, Math.max(proteinArena.length * 2, proteinOffset + proteins.size()));
+                    }
+                    for (String protein : proteins) {
+                        Integer proteinIdx = proteinIdxMap.get(protein);
+                        if (proteinIdx == null) {
+                            proteinIdx = proteinTableList.size();
+                            proteinIdxMap.put(protein, proteinIdx);
+                            proteinTableList.add(protein);
+                        }
+                        proteinArena[proteinOffset] = proteinIdx;
+                        ++proteinOffset;
+                    }
+                    proteinOffsetArray[peptideNum + 1] = proteinOffset;
 
-                if (massPeptideMap.containsKey(peptideMassMap.get(peptide))) {
-                    massPeptideMap.get(peptideMassMap.get(peptide)).add(peptide);
-                } else {
-                    Set<String> tempSet = new HashSet<>();
-                    tempSet.add(peptide);
-                    massPeptideMap.put(peptideMassMap.get(peptide), tempSet);
+                    int codeOffset = codeOffsetArray[peptideNum];
+                    if (needCoding) {
+                        System.arraycopy(codeArray[k], 0, codeArena, codeOffset, codeArray[k].length);
+                        codeOffset += codeArray[k].length;
+                    }
+                    codeOffsetArray[peptideNum + 1] = codeOffset;
+
+                    ++peptideNum;
                 }
             }
+            return new PeptideIndex(minPeptideMass, maxPeptideMass, Arrays.copyOf(massArray, peptideNum), Arrays.copyOf(isTargetArray, peptideNum), Arrays.copyOf(leftFlankArray, peptideNum), Arrays.copyOf(rightFlankArray, peptideNum), Arrays.copyOf(seqOffsetArray, peptideNum + 1), seqArena, Arrays.copyOf(proteinOffsetArray, peptideNum + 1), Arrays.copyOf(proteinArena, proteinOffsetArray[peptideNum]), proteinTableList.toArray(new String[0]), Arrays.copyOf(codeOffsetArray, peptideNum + 1), codeArena);
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    // the digested peptides in the iteration order of MassTool.buildPeptideSet.
+    private String[] digest(String proSeq, int minPeptideLength, int maxPeptideLength) {
+        List<String> peptideList = new ArrayList<>();
+        for (String peptide : massTool.buildPeptideSet(proSeq)) {
+            if (MassTool.containsNonAAAndNC(peptide)) {
+                continue;
+            }
+            if ((peptide.length() - 2 <= maxPeptideLength) && (peptide.length() - 2 >= minPeptideLength)) { // caution: there are n and c in the sequence
+                peptideList.add(peptide);
+            }
         }
-        peptide0Map = new HashMap<>(tempMap); // Since this map won't be changed any more, using this step to create a HashMap with the capacity exactly equals the actual size.
+        return peptideList.toArray(new String[0]);
+    }
+
+    private double[] calMasses(String[] peptideArray) {
+        double[] massArray = new double[peptideArray.length];
+        for (int i = 0; i < peptideArray.length; ++i) {
+            massArray[i] = massTool.calResidueMass(peptideArray[i]) + massTool.H2O;
+        }
+        return massArray;
+    }
+
+    private static void parallelFor(ForkJoinPool forkJoinPool, int n, IntConsumer body) throws Exception {
+        forkJoinPool.submit(() -> IntStream.range(0, n).parallel().forEach(body)).get();
     }
 
     public DbTool getDbTool() {
@@ -209,11 +335,11 @@ public class BuildIndex {
     }
 
     public double getMinPeptideMass() {
-        return minPeptideMass;
+        return peptideIndex.getMinPeptideMass();
     }
 
     public double getMaxPeptideMass() {
-        return maxPeptideMass;
+        return peptideIndex.getMaxPeptideMass();
     }
 
     public Map<Character, Double> returnFixModMap() {
@@ -228,12 +354,8 @@ public class BuildIndex {
         return inferPTM;
     }
 
-    public TreeMap<Double, Set<String>> getMassPeptideMap() {
-        return massPeptideMap;
-    }
-
-    public Map<String, Peptide0> getPeptide0Map() {
-        return peptide0Map;
+    public PeptideIndex getPeptideIndex() {
+        return peptideIndex;
     }
 
     public String getLabelling() {
@@ -0,0 +1,239 @@
+package proteomics.Index;
+
+import proteomics.Types.Peptide0;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class PeptideIndex {
+
+    private final double minPeptideMass; // It includes the peptides without valid flanks, the same as the original digestion.
+    private final double maxPeptideMass;
+
+    // All arrays are indexed by the peptide ordinal. Peptides are sorted by mass, then by sequence.
+    final double[] massArray;
+    final boolean[] isTargetArray;
+    final char[] leftFlankArray;
+    final char[] rightFlankArray;
+    final int[] seqOffsetArray; // length = peptide number + 1
+    final byte[] seqArena; // ASCII sequences with n and c.
+    final int[] proteinOffsetArray; // length = peptide number + 1
+    final int[] proteinArena; // indices of proteinTable.
+    final String[] proteinTable; // distinct protein IDs.
+    final int[] codeOffsetArray; // length = peptide number + 1
+    final int[] codeArena; // sorted segment indices of each peptide.
+    private final int maxCodeLength;
+    private final int[] postingOffsetArray; // indexed by segment. length = segment number + 1
+    private final int[] postingArena; // inverted index: ascending ordinals, i.e. ascending masses, of the peptides containing each segment.
+    private final int[] hashTable; // open addressing. It stores ordinal + 1 so that 0 means empty.
+    private final int hashMask;
+
+    PeptideIndex(double minPeptideMass, double maxPeptideMass, double[] massArray, boolean[] isTargetArray, char[] leftFlankArray, char[] rightFlankArray, int[] seqOffsetArray, byte[] seqArena, int[] proteinOffsetArray, int[] proteinArena, String[] proteinTable, int[] codeOffsetArray, int[] codeArena) {
+        this.minPeptideMass = minPeptideMass;
+        this.maxPeptideMass = maxPeptideMass;
+        this.massArray = massArray;
+        this.isTargetArray = isTargetArray;
+        this.leftFlankArray = leftFlankArray;
+        this.rightFlankArray = rightFlankArray;
+        this.seqOffsetArray = seqOffsetArray;
+        this.seqArena = seqArena;
+        this.proteinOffsetArray = proteinOffsetArray;
+        this.proteinArena = proteinArena;
+        this.proteinTable = proteinTable;
+        this.codeOffsetArray = codeOffsetArray;
+        this.codeArena = codeArena;
+
+        int maxCodeLength = 0;
+        for (int i = 0; i < massArray.length; ++i) {
+            maxCodeLength = Math.max(maxCodeLength, codeOffsetArray[i + 1] - codeOffsetArray[i]);
+        }
+        this.maxCodeLength = maxCodeLength;
+
+        int segmentNum = 0;
+        for (int segment : codeArena) {
+            segmentNum = Math.max(segmentNum, segment + 1);
+        }
+        postingOffsetArray = new int[segmentNum + 1];
+        for (int segment : codeArena) {
+            ++postingOffsetArray[segment + 1];
+        }
+        for (int i = 0; i < segmentNum; ++i) {
+            postingOffsetArray[i + 1] += postingOffsetArray[i];
+        }
+        postingArena = new int[codeArena.length];
+        int[] postingCursorArray = Arrays.copyOf(postingOffsetArray, segmentNum);
+        for (int i = 0; i < massArray.length; ++i) {
+            for (int j = codeOffsetArray[i]; j < codeOffsetArray[i + 1]; ++j) {
+                postingArena[postingCursorArray[codeArena[j]]++] = i;
+            }
+        }
+
+        int tableSize = Integer.highestOneBit(Math.max(massArray.length, 1) * 2 + 1) << 1;
+        hashTable = new int[tableSize];
+        hashMask = tableSize - 1;
+        for (int i = 0; i < massArray.length; ++i) {
+            int slot = hash(i) & hashMask;
+            while (hashTable[slot] != 0) {
+                slot = (slot + 1) & hashMask;
+            }
+            hashTable[slot] = i + 1;
+        }
+    }
+
+    public double getMinPeptideMass() {
+        return minPeptideMass;
+    }
+
+    public double getMaxPeptideMass() {
+        return maxPeptideMass;
+    }
+
+    public int size() {
+        return massArray.length;
+    }
+
+    public double getMass(int ordinal) {
+        return massArray[ordinal];
+    }
+
+    public boolean isTarget(int ordinal) {
+        return isTargetArray[ordinal];
+    }
+
+    public char getLeftFlank(int ordinal) {
+        return leftFlankArray[ordinal];
+    }
+
+    public char getRightFlank(int ordinal) {
+        return rightFlankArray[ordinal];
+    }
+
+    public String getSequence(int ordinal) {
+        return new String(seqArena, seqOffsetArray[ordinal], seqOffsetArray[ordinal + 1] - seqOffsetArray[ordinal], StandardCharsets.US_ASCII);
+    }
+
+    public String[] getProteins(int ordinal) {
+        String[] proteins = new String[proteinOffsetArray[ordinal + 1] - proteinOffsetArray[ordinal]];
+        for (int i = 0; i < proteins.length; ++i) {
+            proteins[i] = proteinTable[proteinArena[proteinOffsetArray[ordinal] + i]];
+        }
+        return proteins;
+    }
+
+    public Peptide0 getPeptide0(int ordinal) {
+        return new Peptide0(isTargetArray[ordinal], getProteins(ordinal), leftFlankArray[ordinal], rightFlankArray[ordinal]);
+    }
+
+    public Peptide0 getPeptide0(String sequence) {
+        int ordinal = getOrdinal(sequence);
+        if (ordinal < 0) {
+            return null;
+        }
+        return getPeptide0(ordinal);
+    }
+
+    public int getOrdinal(String sequence) {
+        int slot = sequence.hashCode() & hashMask;
+        while (hashTable[slot] != 0) {
+            int ordinal = hashTable[slot] - 1;
+            if (sequenceEquals(ordinal, sequence)) {
+                return ordinal;
+            }
+            slot = (slot + 1) & hashMask;
+        }
+        return -1;
+    }
+
+    // the code is boolean, so its squared norm is the number of segments.
+    public int codeNorm2square(int ordinal) {
+        return codeOffsetArray[ordinal + 1] - codeOffsetArray[ordinal];
+    }
+
+    // the largest squared code norm of all peptides.
+    public int getMaxCodeNorm2square() {
+        return maxCodeLength;
+    }
+
+    // the first position in the posting list of the segment whose ordinal >= the given ordinal.
+    public int postingLowerBound(int segment, int ordinal) {
+        if (segment >= postingOffsetArray.length - 1) {
+            return 0;
+        }
+        int low = postingOffsetArray[segment];
+        int high = postingOffsetArray[segment + 1];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (postingArena[mid] < ordinal) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the end position of the posting list of the segment.
+    public int postingEnd(int segment) {
+        if (segment >= postingOffsetArray.length - 1) {
+            return 0;
+        }
+        return postingOffsetArray[segment + 1];
+    }
+
+    public int getPosting(int position) {
+        return postingArena[position];
+    }
+
+    // the first ordinal whose mass >= the given mass.
+    public int lowerBound(double mass) {
+        int low = 0;
+        int high = massArray.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (massArray[mid] < mass) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // the first ordinal whose mass > the given mass.
+    public int upperBound(double mass) {
+        int low = 0;
+        int high = massArray.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (massArray[mid] <= mass) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int hash(int ordinal) {
+        // same as String.hashCode() for ASCII sequences.
+        int h = 0;
+        for (int i = seqOffsetArray[ordinal]; i < seqOffsetArray[ordinal + 1]; ++i) {
+            h = 31 * h + seqArena[i];
+        }
+        return h;
+    }
+
+    private boolean sequenceEquals(int ordinal, String sequence) {
+        int offset = seqOffsetArray[ordinal];
+        int length = seqOffsetArray[ordinal + 1] - offset;
+        if (length != sequence.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (seqArena[offset + i] != sequence.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
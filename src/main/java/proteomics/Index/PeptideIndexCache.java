@@ -0,0 +1,260 @@
+package proteomics.Index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proteomics.PIPI;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+public class PeptideIndexCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PeptideIndexCache.class);
+    private static final int magicNum = 0x50495049; // "PIPI"
+    private static final int formatVersion = 2; // increase it whenever the layout or the index construction changes.
+    static final String noFileHash = String.join("", Collections.nCopies(64, "0")); // the decoy database hash of an index without decoys.
+    private static final String[] keyParameterArray = new String[]{"database_type", "missed_cleavage", "min_peptide_length", "max_peptide_length", "enzyme_name_1", "is_from_C_term_1", "cleavage_site_1", "protection_site_1", "enzyme_name_2", "is_from_C_term_2", "cleavage_site_2", "protection_site_2"};
+
+    // The key covers the protein database and every parameter that changes the peptides, their codes or their proteins.
+    static String calKey(String dbPath, Map<String, String> parameterMap, Map<Character, Double> fixModMap, String labelling, boolean needCoding, boolean addDecoy, boolean addContaminant) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        updateDigest(messageDigest, dbPath);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(formatVersion).append('\n').append(PIPI.versionStr).append('\n'); // the contaminant proteins and the digestion come with the release.
+        for (String k : keyParameterArray) {
+            sb.append(k).append('=').append(parameterMap.getOrDefault(k, "").trim()).append('\n');
+        }
+        for (char aa : new TreeSet<>(fixModMap.keySet())) {
+            sb.append(aa).append('=').append(fixModMap.get(aa)).append('\n');
+        }
+        sb.append(labelling).append('\n').append(needCoding).append('\n').append(addDecoy).append('\n').append(addContaminant).append('\n');
+        messageDigest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return toHex(messageDigest.digest());
+    }
+
+    // The decoy proteins are shuffled at random and every parameter set writes the same <db>.TD.fasta, so an index is only valid together with the TD.fasta written along with it.
+    static String calFileHash(String path) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        updateDigest(messageDigest, path);
+        return toHex(messageDigest.digest());
+    }
+
+    private static void updateDigest(MessageDigest messageDigest, String path) throws IOException {
+        try (DigestInputStream digestInputStream = new DigestInputStream(new BufferedInputStream(new FileInputStream(path)), messageDigest)) {
+            byte[] buffer = new byte[1 << 16];
+            while (digestInputStream.read(buffer) != -1) {
+                // the digest is updated while reading.
+            }
+        }
+    }
+
+    private static String toHex(byte[] byteArray) {
+        StringBuilder sb = new StringBuilder(byteArray.length * 2);
+        for (byte b : byteArray) {
+            sb.append(String.format(Locale.US, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    static File getCacheFile(String dbPath, String key) {
+        return new File(dbPath + "." + key.substring(0, 16) + ".pipi.index");
+    }
+
+    // Returns null if the file doesn't belong to the key and the decoy database, or has an old format. Throws an IOException if the file is corrupt. The sizes are checked against the file length before anything is allocated.
+    static PeptideIndex read(File cacheFile, String key, String tdFastaHash) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r")) {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            SectionReader reader = new SectionReader(fileChannel);
+            MappedByteBuffer header = reader.map(4 + 4 + 64 + 64);
+            if (header.getInt() != magicNum || header.getInt() != formatVersion) {
+                return null;
+            }
+            byte[] keyBytes = new byte[64];
+            header.get(keyBytes);
+            if (!new String(keyBytes, StandardCharsets.US_ASCII).contentEquals(key)) {
+                return null;
+            }
+            header.get(keyBytes);
+            if (!new String(keyBytes, StandardCharsets.US_ASCII).contentEquals(tdFastaHash)) {
+                return null;
+            }
+
+            MappedByteBuffer sizeBuffer = reader.map(8 + 8 + 4 * 5);
+            double minPeptideMass = sizeBuffer.getDouble();
+            double maxPeptideMass = sizeBuffer.getDouble();
+            int peptideNum = sizeBuffer.getInt();
+            int seqArenaSize = sizeBuffer.getInt();
+            int proteinArenaSize = sizeBuffer.getInt();
+            int proteinTableSize = sizeBuffer.getInt();
+            int codeArenaSize = sizeBuffer.getInt();
+            if (peptideNum < 0 || seqArenaSize < 0 || proteinArenaSize < 0 || proteinTableSize < 0 || codeArenaSize < 0) {
+                throw new IOException("The index file is corrupt.");
+            }
+            long fixedSize = 13L * peptideNum + 12L * (peptideNum + 1) + seqArenaSize + 4L * proteinArenaSize + 4L * proteinTableSize + 4L * codeArenaSize; // all sections except the protein names.
+            if (fixedSize > reader.remaining()) {
+                throw new IOException("The index file is corrupt.");
+            }
+
+            double[] massArray = new double[peptideNum];
+            reader.map(8L * peptideNum).asDoubleBuffer().get(massArray);
+            byte[] isTargetByteArray = new byte[peptideNum];
+            reader.map(peptideNum).get(isTargetByteArray);
+            boolean[] isTargetArray = new boolean[peptideNum];
+            for (int i = 0; i < peptideNum; ++i) {
+                isTargetArray[i] = isTargetByteArray[i] == 1;
+            }
+            char[] leftFlankArray = new char[peptideNum];
+            reader.map(2L * peptideNum).asCharBuffer().get(leftFlankArray);
+            char[] rightFlankArray = new char[peptideNum];
+            reader.map(2L * peptideNum).asCharBuffer().get(rightFlankArray);
+            int[] seqOffsetArray = new int[peptideNum + 1];
+            reader.map(4L * (peptideNum + 1)).asIntBuffer().get(seqOffsetArray);
+            byte[] seqArena = new byte[seqArenaSize];
+            reader.map(seqArenaSize).get(seqArena);
+            int[] proteinOffsetArray = new int[peptideNum + 1];
+            reader.map(4L * (peptideNum + 1)).asIntBuffer().get(proteinOffsetArray);
+            int[] proteinArena = new int[proteinArenaSize];
+            reader.map(4L * proteinArenaSize).asIntBuffer().get(proteinArena);
+            int[] proteinLengthArray = new int[proteinTableSize];
+            reader.map(4L * proteinTableSize).asIntBuffer().get(proteinLengthArray);
+            long proteinBytesSize = 0;
+            for (int proteinLength : proteinLengthArray) {
+                if (proteinLength < 0) {
+                    throw new IOException("The index file is corrupt.");
+                }
+                proteinBytesSize += proteinLength;
+            }
+            if (proteinBytesSize > reader.remaining()) {
+                throw new IOException("The index file is corrupt.");
+            }
+            MappedByteBuffer proteinBuffer = reader.map(proteinBytesSize);
+            String[] proteinTable = new String[proteinTableSize];
+            for (int i = 0; i < proteinTableSize; ++i) {
+                byte[] proteinBytes = new byte[proteinLengthArray[i]];
+                proteinBuffer.get(proteinBytes);
+                proteinTable[i] = new String(proteinBytes, StandardCharsets.UTF_8);
+            }
+            int[] codeOffsetArray = new int[peptideNum + 1];
+            reader.map(4L * (peptideNum + 1)).asIntBuffer().get(codeOffsetArray);
+            int[] codeArena = new int[codeArenaSize];
+            reader.map(4L * codeArenaSize).asIntBuffer().get(codeArena);
+
+            if (reader.position != fileChannel.size()) {
+                throw new IOException("The index file is corrupt.");
+            }
+            checkOffsets(seqOffsetArray, seqArenaSize);
+            checkOffsets(proteinOffsetArray, proteinArenaSize);
+            checkOffsets(codeOffsetArray, codeArenaSize);
+            for (int proteinIdx : proteinArena) {
+                if (proteinIdx < 0 || proteinIdx >= proteinTableSize) {
+                    throw new IOException("The index file is corrupt.");
+                }
+            }
+
+            return new PeptideIndex(minPeptideMass, maxPeptideMass, massArray, isTargetArray, leftFlankArray, rightFlankArray, seqOffsetArray, seqArena, proteinOffsetArray, proteinArena, proteinTable, codeOffsetArray, codeArena);
+        }
+    }
+
+    // the offsets of an arena start from 0, never decrease and end at the arena size.
+    private static void checkOffsets(int[] offsetArray, int arenaSize) throws IOException {
+        if (offsetArray[0] != 0 || offsetArray[offsetArray.length - 1] != arenaSize) {
+            throw new IOException("The index file is corrupt.");
+        }
+        for (int i = 1; i < offsetArray.length; ++i) {
+            if (offsetArray[i] < offsetArray[i - 1]) {
+                throw new IOException("The index file is corrupt.");
+            }
+        }
+    }
+
+    // Writes to a temporary file first so that concurrent runs never see a partial index.
+    static void write(File cacheFile, String key, String tdFastaHash, PeptideIndex peptideIndex) throws IOException {
+        File tempFile = File.createTempFile(cacheFile.getName() + ".", ".temp", cacheFile.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 20))) {
+                int peptideNum = peptideIndex.size();
+                writer.writeInt(magicNum);
+                writer.writeInt(formatVersion);
+                writer.write(key.getBytes(StandardCharsets.US_ASCII));
+                writer.write(tdFastaHash.getBytes(StandardCharsets.US_ASCII));
+                writer.writeDouble(peptideIndex.getMinPeptideMass());
+                writer.writeDouble(peptideIndex.getMaxPeptideMass());
+                writer.writeInt(peptideNum);
+                writer.writeInt(peptideIndex.seqArena.length);
+                writer.writeInt(peptideIndex.proteinArena.length);
+                writer.writeInt(peptideIndex.proteinTable.length);
+                writer.writeInt(peptideIndex.codeArena.length);
+
+                for (double mass : peptideIndex.massArray) {
+                    writer.writeDouble(mass);
+                }
+                for (boolean isTarget : peptideIndex.isTargetArray) {
+                    writer.writeByte(isTarget ? 1 : 0);
+                }
+                for (char leftFlank : peptideIndex.leftFlankArray) {
+                    writer.writeChar(leftFlank);
+                }
+                for (char rightFlank : peptideIndex.rightFlankArray) {
+                    writer.writeChar(rightFlank);
+                }
+                writeIntArray(writer, peptideIndex.seqOffsetArray);
+                writer.write(peptideIndex.seqArena);
+                writeIntArray(writer, peptideIndex.proteinOffsetArray);
+                writeIntArray(writer, peptideIndex.proteinArena);
+                byte[][] proteinBytesArray = new byte[peptideIndex.proteinTable.length][];
+                for (int i = 0; i < proteinBytesArray.length; ++i) {
+                    proteinBytesArray[i] = peptideIndex.proteinTable[i].getBytes(StandardCharsets.UTF_8);
+                    writer.writeInt(proteinBytesArray[i].length);
+                }
+                for (byte[] proteinBytes : proteinBytesArray) {
+                    writer.write(proteinBytes);
+                }
+                writeIntArray(writer, peptideIndex.codeOffsetArray);
+                writeIntArray(writer, peptideIndex.codeArena);
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Cannot delete the temporary index file {}.", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private static void writeIntArray(DataOutputStream writer, int[] intArray) throws IOException {
+        for (int v : intArray) {
+            writer.writeInt(v);
+        }
+    }
+
+    // Maps the file section by section. Each array has its own mapping so that the whole file can be larger than 2 GB.
+    private static class SectionReader {
+
+        private final FileChannel fileChannel;
+        private long position = 0;
+
+        SectionReader(FileChannel fileChannel) {
+            this.fileChannel = fileChannel;
+        }
+
+        MappedByteBuffer map(long size) throws IOException {
+            if (position + size > fileChannel.size()) {
+                throw new EOFException("The index file is truncated.");
+            }
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+            return buffer;
+        }
+
+        long remaining() throws IOException {
+            return fileChannel.size() - position;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package proteomics;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Per-stage latency histograms of the search. Each thread records into its own arrays without any synchronization. The arrays are merged only after the tasks are finished (Future.get() and join() make the records visible).
+public class Metrics {
+
+    public enum Stage {
+        SPECTRUM_READ("spectrum_read"),
+        PRE_SPECTRUM("pre_spectrum"),
+        INFER_SEGMENT("infer_segment"),
+        SEARCH("search"), // one record per searched spectrum.
+        PTM_1("ptm_1"),
+        PTM_2("ptm_2"),
+        PTM_3("ptm_3"),
+        PTM_4("ptm_4"),
+        PTM_5("ptm_5"),
+        PTM_FREE_XCORR("ptm_free_xcorr"),
+        CAL_SUBSCORES("cal_subscores"),
+        RESULT_STORE("result_store");
+
+        public final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Stage[] ptmStageArray = new Stage[]{Stage.PTM_1, Stage.PTM_2, Stage.PTM_3, Stage.PTM_4, Stage.PTM_5};
+
+    // Log-linear buckets: values below 8 ns have their own buckets, and every power of two above is split into 8 sub-buckets, so a bucket is at most 12.5% wide.
+    private static final int subBucketBits = 3;
+    private static final int subBucketNum = 1 << subBucketBits;
+    private static final int bucketNum = (64 - subBucketBits + 1) * subBucketNum;
+
+    private static final List<Recorder> recorderList = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<Recorder> localRecorder = ThreadLocal.withInitial(() -> {
+        Recorder recorder = new Recorder();
+        recorderList.add(recorder);
+        return recorder;
+    });
+
+    public static Stage ptmStage(int k) {
+        return ptmStageArray[k - 1];
+    }
+
+    // startTime is from System.nanoTime().
+    public static void record(Stage stage, long startTime) {
+        localRecorder.get().record(stage.ordinal(), System.nanoTime() - startTime);
+    }
+
+    public static Histogram[] merge() {
+        Histogram[] histogramArray = new Histogram[Stage.values().length];
+        for (Stage stage : Stage.values()) {
+            histogramArray[stage.ordinal()] = new Histogram(stage);
+        }
+        for (Recorder recorder : recorderList) {
+            for (int i = 0; i < histogramArray.length; ++i) {
+                histogramArray[i].add(recorder, i);
+            }
+        }
+        return histogramArray;
+    }
+
+    public static void logSummary(Logger logger, Histogram[] histogramArray) {
+        for (Histogram histogram : histogramArray) {
+            if (histogram.count > 0) {
+                logger.info(String.format(Locale.US, "%s: %d calls, total %.3f s, mean %.1f us, p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us.", histogram.stage.label, histogram.count, histogram.sum * 1e-9, histogram.getMean() * 1e-3, histogram.getPercentile(0.5) * 1e-3, histogram.getPercentile(0.9) * 1e-3, histogram.getPercentile(0.99) * 1e-3, histogram.max * 1e-3));
+            }
+        }
+    }
+
+    public static void writeJson(String path, Histogram[] histogramArray, Map<String, Long> counterMap) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
+            writer.write("{\n  \"unit\": \"ns\",\n  \"stages\": {\n");
+            for (int i = 0; i < histogramArray.length; ++i) {
+                Histogram histogram = histogramArray[i];
+                writer.write(String.format(Locale.US, "    \"%s\": {\"count\": %d, \"sum\": %d, \"min\": %d, \"max\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"buckets\": [", histogram.stage.label, histogram.count, histogram.sum, histogram.count > 0 ? histogram.min : 0, histogram.max, histogram.getMean(), histogram.getPercentile(0.5), histogram.getPercentile(0.9), histogram.getPercentile(0.99), histogram.getPercentile(0.999)));
+                // only the non-empty buckets as [lower bound, upper bound, count].
+                boolean first = true;
+                for (int j = 0; j < bucketNum; ++j) {
+                    if (histogram.bucketArray[j] > 0) {
+                        if (!first) {
+                            writer.write(", ");
+                        }
+                        writer.write(String.format(Locale.US, "[%d, %d, %d]", lowerBound(j), upperBound(j), histogram.bucketArray[j]));
+                        first = false;
+                    }
+                }
+                writer.write(i + 1 < histogramArray.length ? "]},\n" : "]}\n");
+            }
+            writer.write("  },\n  \"counters\": {");
+            boolean first = true;
+            for (Map.Entry<String, Long> entry : counterMap.entrySet()) {
+                writer.write(String.format(Locale.US, "%s\n    \"%s\": %d", first ? "" : ",", entry.getKey(), entry.getValue()));
+                first = false;
+            }
+            writer.write("\n  }\n}\n");
+        }
+    }
+
+    static int bucketIdx(long value) {
+        if (value < subBucketNum) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // >= subBucketBits
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBucketNum - 1);
+        return ((exponent - subBucketBits + 1) << subBucketBits) + subBucket;
+    }
+
+    static long lowerBound(int bucketIdx) {
+        if (bucketIdx < subBucketNum) {
+            return bucketIdx;
+        }
+        int shift = (bucketIdx >>> subBucketBits) - 1;
+        return (long) (subBucketNum + (bucketIdx & (subBucketNum - 1))) << shift;
+    }
+
+    static long upperBound(int bucketIdx) {
+        if (bucketIdx < subBucketNum) {
+            return bucketIdx;
+        }
+        return lowerBound(bucketIdx) + (1L << ((bucketIdx >>> subBucketBits) - 1)) - 1;
+    }
+
+    private static class Recorder {
+
+        private final long[][] bucketMatrix = new long[Stage.values().length][bucketNum];
+        private final long[] sumArray = new long[Stage.values().length];
+        private final long[] minArray = new long[Stage.values().length];
+        private final long[] maxArray = new long[Stage.values().length];
+
+        Recorder() {
+            Arrays.fill(minArray, Long.MAX_VALUE);
+        }
+
+        void record(int stageIdx, long duration) {
+            ++bucketMatrix[stageIdx][bucketIdx(duration)];
+            sumArray[stageIdx] += duration;
+            if (duration < minArray[stageIdx]) {
+                minArray[stageIdx] = duration;
+            }
+            if (duration > maxArray[stageIdx]) {
+                maxArray[stageIdx] = duration;
+            }
+        }
+    }
+
+    public static class Histogram {
+
+        public final Stage stage;
+        private final long[] bucketArray = new long[bucketNum];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        Histogram(Stage stage) {
+            this.stage = stage;
+        }
+
+        void add(Recorder recorder, int stageIdx) {
+            long[] recorderBucketArray = recorder.bucketMatrix[stageIdx];
+            for (int i = 0; i < bucketNum; ++i) {
+                bucketArray[i] += recorderBucketArray[i];
+                count += recorderBucketArray[i];
+            }
+            sum += recorder.sumArray[stageIdx];
+            min = Math.min(min, recorder.minArray[stageIdx]);
+            max = Math.max(max, recorder.maxArray[stageIdx]);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        // The upper bound of the bucket holding the percentile, capped by the recorded maximum.
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max((long) Math.ceil(percentile * count), 1);
+            long accumulated = 0;
+            for (int i = 0; i < bucketNum; ++i) {
+                accumulated += bucketArray[i];
+                if (accumulated >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package proteomics.Output;
+
+import proteomics.PIPIWrap;
+import proteomics.Types.Peptide0;
+
+import java.util.TreeSet;
+
+public class PsmEntry {
+
+    // values derived from a search result. They are computed while the results are streamed into an output file and dropped after the PSM is written.
+    public final PIPIWrap.Entry entry;
+    public final String ptmFreePeptide;
+    public final Peptide0 peptide0;
+    public final TreeSet<String> proteinIdSet;
+    public final String proteinIdStr; // joined by ";"
+    public final double massDiff;
+    public final double ppm;
+
+    public PsmEntry(PIPIWrap.Entry entry, String ptmFreePeptide, Peptide0 peptide0, TreeSet<String> proteinIdSet, double massDiff) {
+        this.entry = entry;
+        this.ptmFreePeptide = ptmFreePeptide;
+        this.peptide0 = peptide0;
+        this.proteinIdSet = proteinIdSet;
+        this.proteinIdStr = String.join(";", proteinIdSet);
+        this.massDiff = massDiff;
+        this.ppm = Math.abs(massDiff * 1e6 / entry.theoMass);
+    }
+}
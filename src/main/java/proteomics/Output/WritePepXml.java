@@ -1,13 +1,12 @@
 package proteomics.Output;
 
-import ProteomicsLibrary.Types.Coordinate;
 import proteomics.PIPI;
+import proteomics.PIPIWrap;
 import ProteomicsLibrary.MassTool;
 import ProteomicsLibrary.Types.AA;
 import proteomics.Types.*;
 
 import java.io.*;
-import java.sql.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -19,88 +18,92 @@ public class WritePepXml {
     private final String baseName;
     private final String rawDataType;
     private final Map<String, String> parameterMap;
+    private final Map<Character, Double> massTable;
+    private final Map<Integer, PercolatorEntry> percolatorResultMap;
+    private final Map<Character, Double> fixModMap;
+    private final BufferedWriter writer;
 
-    public WritePepXml(String outputPath, String spectraName, Map<String, String> parameterMap, Map<Character, Double> massTable, Map<Integer, PercolatorEntry> percolatorResultMap, Map<String, Peptide0> peptide0Map, Map<Character, Double> fixModMap, String sqlPath) throws IOException, SQLException {
+    // The PSMs are written one by one with write() while the results are streamed. close() finishes the file.
+    public WritePepXml(String outputPath, String spectraName, Map<String, String> parameterMap, Map<Character, Double> massTable, Map<Integer, PercolatorEntry> percolatorResultMap, Map<Character, Double> fixModMap) throws IOException {
         this.outputPath = outputPath;
         int tempIdx = spectraName.lastIndexOf('.');
         baseName = spectraName.substring(0, tempIdx);
         rawDataType = spectraName.substring(tempIdx);
         this.parameterMap = parameterMap;
+        this.massTable = massTable;
+        this.percolatorResultMap = percolatorResultMap;
+        this.fixModMap = fixModMap;
 
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath));
+        writer = new BufferedWriter(new FileWriter(outputPath));
         writer.write(pepxmlHeader(massTable));
-        Connection sqlConnection = DriverManager.getConnection(sqlPath);
-        Statement sqlStatement = sqlConnection.createStatement();
-        ResultSet sqlResultSet = sqlStatement.executeQuery("SELECT scanNum, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, labelling, peptide, theoMass, isDecoy, score, matchedPeakNum, otherPtmPatterns, aScore FROM spectraTable");
-        while (sqlResultSet.next()) {
-            int scanNum = sqlResultSet.getInt("scanNum");
-                String peptide = sqlResultSet.getString("peptide");
-            if ((percolatorResultMap == null || percolatorResultMap.containsKey(scanNum)) && !sqlResultSet.wasNull()) {
-                String ptmFreePeptide = peptide.replaceAll("[^ncA-Z]+", "");
-                Peptide0 peptide0 = peptide0Map.get(ptmFreePeptide);
-                TreeSet<String> proteinIdSet = new TreeSet<>();
-                for (String protein : peptide0.proteins) {
-                    proteinIdSet.add(protein.trim());
-                }
-                double expMass = sqlResultSet.getDouble("precursorMass");
-                String aScore = sqlResultSet.getString("aScore");
-                PercolatorEntry percolatorEntry = null;
-                if (percolatorResultMap != null) {
-                    percolatorEntry = percolatorResultMap.get(scanNum);
-                }
-                int precursorCharge = sqlResultSet.getInt("precursorCharge");
-                double theoMass = sqlResultSet.getDouble("theoMass");
+    }
 
-                writer.write(String.format(Locale.US,
-                        "\t\t<spectrum_query spectrum=\"%d\" start_scan=\"%d\" end_scan=\"%d\" precursor_neutral_mass=\"%f\" assumed_charge=\"%d\" index=\"%d\">\r\n" +
-                                "\t\t\t<search_result>\r\n" +
-                                "\t\t\t\t<search_hit hit_rank=\"1\" peptide=\"%s\" peptide_prev_aa=\"%c\" peptide_next_aa=\"%c\" protein=\"%s\" num_tot_proteins=\"%d\" num_matched_ions=\"%d\" tot_num_ions=\"%d\" calc_neutral_pep_mass=\"%f\" massdiff=\"%f\" num_tol_term=\"2\">\r\n" +
-                                "\t\t\t\t\t<search_score name=\"score\" value=\"%f\"/>\r\n" +
-                                "\t\t\t\t\t<search_score name=\"A_score\" value=\"%s\"/>\r\n" +
-                                "\t\t\t\t\t<search_score name=\"percolator_score\" value=\"%f\"/>\r\n" +
-                                "\t\t\t\t\t<search_score name=\"percolator_error_prob\" value=\"%s\"/>\r\n" +
-                                "\t\t\t\t\t<search_score name=\"q_value\" value=\"%s\"/>\r\n" +
-                                "\t\t\t\t\t<search_score name=\"labelling\" value=\"%s\"/>\r\n", scanNum, scanNum, scanNum, expMass, precursorCharge, scanNum, ptmFreePeptide.replaceAll("[nc]+", ""), peptide0.leftFlank, peptide0.rightFlank, String.join(";", proteinIdSet), peptide0.proteins.length, sqlResultSet.getInt("matchedPeakNum"), (ptmFreePeptide.length() - 2) * 2 * Math.max(1, precursorCharge - 1), theoMass, PIPI.getMassDiff(expMass, theoMass, MassTool.C13_DIFF), sqlResultSet.getDouble("score"), aScore, percolatorEntry == null ? null : percolatorEntry.percolatorScore, percolatorEntry == null ? "null" : percolatorEntry.PEP, percolatorEntry == null ? "null" : percolatorEntry.qValue, sqlResultSet.getString("labelling")));
+    public void write(PsmEntry psmEntry) throws IOException {
+        PIPIWrap.Entry entry = psmEntry.entry;
+        int scanNum = entry.scanNum;
+        String peptide = entry.peptide;
+        if (percolatorResultMap == null || percolatorResultMap.containsKey(scanNum)) {
+            String ptmFreePeptide = psmEntry.ptmFreePeptide;
+            Peptide0 peptide0 = psmEntry.peptide0;
+            double expMass = entry.precursorMass;
+            String aScore = entry.aScore;
+            PercolatorEntry percolatorEntry = null;
+            if (percolatorResultMap != null) {
+                percolatorEntry = percolatorResultMap.get(scanNum);
+            }
+            int precursorCharge = entry.precursorCharge;
+            double theoMass = entry.theoMass;
 
-                if (!aScore.contentEquals("-")) {
-                    PositionDeltaMassMap ptmMap = new PositionDeltaMassMap(ptmFreePeptide.length());
-                    AA[] aaArray = MassTool.seqToAAList(peptide);
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < aaArray.length; ++i) {
-                        if (Math.abs(aaArray[i].ptmDeltaMass) > 0.5 && Math.abs(fixModMap.get(aaArray[i].aa) - aaArray[i].ptmDeltaMass) > 0.1) {
-                            ptmMap.put(new Coordinate(i, i + 1), aaArray[i].ptmDeltaMass);
-                            sb.append(String.format(Locale.US, "%c(%.3f)", aaArray[i].aa, aaArray[i].ptmDeltaMass));
-                        } else {
-                            sb.append(aaArray[i].aa);
-                        }
-                    }
-                    if (ptmMap.containsKey(new Coordinate(0, 1)) && ptmMap.containsKey(new Coordinate(ptmMap.peptideLength - 1, ptmMap.peptideLength))) {
-                        writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\" mod_nterm_mass=\"%f\" mod_cterm_mass=\"%f\">\r\n", sb.toString(), ptmMap.get(new Coordinate(0, 1)) + MassTool.PROTON, ptmMap.get(new Coordinate(ptmMap.peptideLength - 1, ptmMap.peptideLength))));
-                    } else if (ptmMap.containsKey(new Coordinate(0, 1))) {
-                        writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\" mod_nterm_mass=\"%f\">\r\n", sb.toString(), ptmMap.get(new Coordinate(0, 1)) + MassTool.PROTON));
-                    } else if (ptmMap.containsKey(new Coordinate(ptmMap.peptideLength - 1, ptmMap.peptideLength))) {
-                        writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\" mod_cterm_mass=\"%f\">\r\n", sb.toString(), ptmMap.get(new Coordinate(ptmMap.peptideLength - 1, ptmMap.peptideLength))));
+            writer.write(String.format(Locale.US,
+                    "\t\t<spectrum_query spectrum=\"%d\" start_scan=\"%d\" end_scan=\"%d\" precursor_neutral_mass=\"%f\" assumed_charge=\"%d\" index=\"%d\">\r\n" +
+                            "\t\t\t<search_result>\r\n" +
+                            "\t\t\t\t<search_hit hit_rank=\"1\" peptide=\"%s\" peptide_prev_aa=\"%c\" peptide_next_aa=\"%c\" protein=\"%s\" num_tot_proteins=\"%d\" num_matched_ions=\"%d\" tot_num_ions=\"%d\" calc_neutral_pep_mass=\"%f\" massdiff=\"%f\" num_tol_term=\"2\">\r\n" +
+                            "\t\t\t\t\t<search_score name=\"score\" value=\"%f\"/>\r\n" +
+                            "\t\t\t\t\t<search_score name=\"A_score\" value=\"%s\"/>\r\n" +
+                            "\t\t\t\t\t<search_score name=\"percolator_score\" value=\"%f\"/>\r\n" +
+                            "\t\t\t\t\t<search_score name=\"percolator_error_prob\" value=\"%s\"/>\r\n" +
+                            "\t\t\t\t\t<search_score name=\"q_value\" value=\"%s\"/>\r\n" +
+                            "\t\t\t\t\t<search_score name=\"labelling\" value=\"%s\"/>\r\n", scanNum, scanNum, scanNum, expMass, precursorCharge, scanNum, ptmFreePeptide.replaceAll("[nc]+", ""), peptide0.leftFlank, peptide0.rightFlank, psmEntry.proteinIdStr, peptide0.proteins.length, entry.matchedPeakNum, (ptmFreePeptide.length() - 2) * 2 * Math.max(1, precursorCharge - 1), theoMass, psmEntry.massDiff, entry.score, aScore, percolatorEntry == null ? null : percolatorEntry.percolatorScore, percolatorEntry == null ? "null" : percolatorEntry.PEP, percolatorEntry == null ? "null" : percolatorEntry.qValue, entry.labelling));
+
+            if (!aScore.contentEquals("-")) {
+                PositionDeltaMassMap ptmMap = new PositionDeltaMassMap(ptmFreePeptide.length());
+                AA[] aaArray = MassTool.seqToAAList(peptide);
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < aaArray.length; ++i) {
+                    if (Math.abs(aaArray[i].ptmDeltaMass) > 0.5 && Math.abs(fixModMap.get(aaArray[i].aa) - aaArray[i].ptmDeltaMass) > 0.1) {
+                        ptmMap.put(i, aaArray[i].ptmDeltaMass);
+                        sb.append(String.format(Locale.US, "%c(%.3f)", aaArray[i].aa, aaArray[i].ptmDeltaMass));
                     } else {
-                        writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\">\r\n", sb.toString()));
+                        sb.append(aaArray[i].aa);
                     }
-                    for (Coordinate co : ptmMap.keySet()) {
-                        if (co.x != 0 && co.x != ptmMap.peptideLength - 1) {
-                            writer.write(String.format(Locale.US, "\t\t\t\t\t\t<mod_aminoacid_mass position=\"%d\" mass=\"%f\"/>\r\n", co.x, massTable.get(ptmFreePeptide.charAt(co.x)) + ptmMap.get(co)));
-                        }
+                }
+                if (ptmMap.containsPosition(0) && ptmMap.containsPosition(ptmMap.peptideLength - 1)) {
+                    writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\" mod_nterm_mass=\"%f\" mod_cterm_mass=\"%f\">\r\n", sb.toString(), ptmMap.get(0) + MassTool.PROTON, ptmMap.get(ptmMap.peptideLength - 1)));
+                } else if (ptmMap.containsPosition(0)) {
+                    writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\" mod_nterm_mass=\"%f\">\r\n", sb.toString(), ptmMap.get(0) + MassTool.PROTON));
+                } else if (ptmMap.containsPosition(ptmMap.peptideLength - 1)) {
+                    writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\" mod_cterm_mass=\"%f\">\r\n", sb.toString(), ptmMap.get(ptmMap.peptideLength - 1)));
+                } else {
+                    writer.write(String.format(Locale.US, "\t\t\t\t\t<modification_info modified_peptide=\"%s\">\r\n", sb.toString()));
+                }
+                for (int i = 0; i < ptmMap.size(); ++i) {
+                    int position = ptmMap.getPosition(i);
+                    if (position != 0 && position != ptmMap.peptideLength - 1) {
+                        writer.write(String.format(Locale.US, "\t\t\t\t\t\t<mod_aminoacid_mass position=\"%d\" mass=\"%f\"/>\r\n", position, massTable.get(ptmFreePeptide.charAt(position)) + ptmMap.getDeltaMass(i)));
                     }
-                    writer.write("\t\t\t\t\t</modification_info>\r\n");
                 }
-                writer.write("\t\t\t\t</search_hit>\r\n" +
-                        "\t\t\t</search_result>\r\n" +
-                        " \t\t</spectrum_query>\r\n");
+                writer.write("\t\t\t\t\t</modification_info>\r\n");
             }
+            writer.write("\t\t\t\t</search_hit>\r\n" +
+                    "\t\t\t</search_result>\r\n" +
+                    " \t\t</spectrum_query>\r\n");
         }
+    }
+
+    public void close() throws IOException {
         writer.write("\t</msms_run_summary>\r\n" +
                         "</msms_pipeline_analysis>\r\n");
         writer.close();
-        sqlResultSet.close();
-        sqlStatement.close();
-        sqlConnection.close();
     }
 
     private String pepxmlHeader(Map<Character, Double> massTable) {
@@ -7,13 +7,13 @@ import com.google.common.collect.Table;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import proteomics.Index.BuildIndex;
+import proteomics.Index.PeptideIndex;
 import proteomics.PTM.InferPTM;
 import proteomics.Parameter.Parameter;
 import ProteomicsLibrary.*;
 import ProteomicsLibrary.Types.AA;
 import ProteomicsLibrary.Utilities;
 import proteomics.Types.ModEntry;
-import proteomics.Types.Peptide0;
 
 import java.io.*;
 import java.nio.file.Files;
@@ -48,7 +48,7 @@ public class OutputPeff {
         BuildIndex buildIndex = new BuildIndex(parameterMap, "N14", false, false, true);
         MassTool massTool = buildIndex.returnMassTool();
         Map<Character, Double> massTable = massTool.getMassTable();
-        Map<String, Peptide0> peptideProtein0Map = buildIndex.getPeptide0Map();
+        PeptideIndex peptideIndex = buildIndex.getPeptideIndex();
         DbTool dbTool = buildIndex.getDbTool();
         Map<String, String> proteinSequenceMap = dbTool.getProteinSequenceMap();
         Map<Character, Double> fixModMap = buildIndex.returnFixModMap();
@@ -111,7 +111,7 @@ public class OutputPeff {
             Table<String, Integer, Set<Character>> proteinLocationAASTable = HashBasedTable.create();
             for (String peptide : peptideSet) {
                 AA[] aaArray = MassTool.seqToAAList(peptide);
-                for (String protein : peptideProtein0Map.get(DbTool.getPtmFreePeptide(peptide)).proteins) {
+                for (String protein : peptideIndex.getProteins(peptideIndex.getOrdinal(DbTool.getPtmFreePeptide(peptide)))) {
                     if (proteinSequenceMap.containsKey(protein)) {
                         String proteinSequence = proteinSequenceMap.get(protein);
                         Set<Integer> peptideLocationSet = DbTool.findPeptideLocation(proteinSequence, peptide, parameterMap.get("cleavage_site_1"), parameterMap.get("protection_site_1")); // FixMe: Only consider the first enzyme if the users specify two enzymes.
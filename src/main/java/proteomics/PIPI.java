@@ -2,14 +2,20 @@ package proteomics;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import proteomics.Output.PsmEntry;
 import proteomics.Output.WritePepXml;
 import proteomics.PTM.InferPTM;
 import ProteomicsLibrary.Binomial;
 import ProteomicsLibrary.PrepareSpectrum;
 import proteomics.Types.*;
 import proteomics.Index.BuildIndex;
+import proteomics.Index.PeptideIndex;
 import proteomics.Parameter.Parameter;
 import proteomics.Spectrum.PreSpectra;
+import proteomics.Spectrum.SpectrumStore;
+import proteomics.Store.ColumnarResultStore;
+import proteomics.Store.ResultStore;
+import proteomics.Store.SqliteResultStore;
 import ProteomicsLibrary.MassTool;
 import uk.ac.ebi.pride.tools.jmzreader.JMzReader;
 import uk.ac.ebi.pride.tools.mgf_parser.MgfFile;
@@ -18,17 +24,16 @@ import uk.ac.ebi.pride.tools.mzxml_parser.MzXMLFile;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.sql.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class PIPI {
 
     private static final Logger logger = LoggerFactory.getLogger(PIPI.class);
     public static final String versionStr = "1.4.6";
     static final boolean useXcorr = true;
+    private static final int inFlightTaskNumPerThread = 4;
 
     public static final int[] debugScanNumArray = new int[]{};
 
@@ -65,9 +70,10 @@ public class PIPI {
             logger.error(ex.toString());
         } finally {
             if (dbName != null) {
-                (new File(dbName)).delete();
-                (new File(dbName + "-wal")).delete();
-                (new File(dbName + "-shm")).delete();
+                deleteTempFile(new File(dbName));
+                deleteTempFile(new File(dbName + "-wal"));
+                deleteTempFile(new File(dbName + "-shm"));
+                deleteTempFile(new File(dbName + "-pl"));
             }
         }
 
@@ -89,6 +95,10 @@ public class PIPI {
         double maxClear = Double.valueOf(parameterMap.get("max_clear_mz"));
         String percolatorPath = parameterMap.get("percolator_path");
         boolean outputPercolatorInput = (Integer.valueOf(parameterMap.get("output_percolator_input")) == 1);
+        boolean inMemoryStore = parameterMap.getOrDefault("in_memory_store", "1").contentEquals("1");
+        int taskScanNum = Math.max(1, Integer.valueOf(parameterMap.getOrDefault("task_scan_num", "16")));
+        int ptmThreadNum = Integer.valueOf(parameterMap.getOrDefault("ptm_thread_num", "0"));
+        int slowScanNum = Integer.valueOf(parameterMap.getOrDefault("slow_scan_num", "0"));
 
         // print all the parameters
         logger.info("Parameters:");
@@ -146,10 +156,16 @@ public class PIPI {
             throw new Exception(String.format(Locale.US, "Unsupported file format %s. Currently, PIPI only support mzXML and MGF.", ext));
         }
 
-        String sqlPath = "jdbc:sqlite:" + dbName;
-        Class.forName("org.sqlite.JDBC").newInstance();
+        ResultStore resultStore;
+        if (inMemoryStore) {
+            resultStore = new ColumnarResultStore();
+        } else {
+            logger.info("Keeping the scans and the results in a temporary SQLite database {}.", dbName);
+            resultStore = new SqliteResultStore("jdbc:sqlite:" + dbName);
+        }
 
-        PreSpectra preSpectra = new PreSpectra(spectraParser, ms1Tolerance, ms1ToleranceUnit, massTool, ext, msLevelSet, sqlPath);
+        SpectrumStore spectrumStore = new SpectrumStore(dbName + "-pl");
+        PreSpectra preSpectra = new PreSpectra(spectraParser, ms1Tolerance, ms1ToleranceUnit, massTool, ext, msLevelSet, resultStore, spectrumStore);
 
         logger.info("Start searching...");
         int threadNum = Integer.valueOf(parameterMap.get("thread_num"));
@@ -160,82 +176,72 @@ public class PIPI {
             threadNum = 1;
         }
         ExecutorService threadPool = Executors.newFixedThreadPool(threadNum);
+        CompletionService<List<PIPIWrap.Entry>> completionService = new ExecutorCompletionService<>(threadPool);
+        ForkJoinPool ptmPool = null; // shared by all tasks. The candidates of one spectrum infer their PTMs in parallel.
+        if (ptmThreadNum > 0 && debugScanNumArray.length == 0) {
+            ptmPool = new ForkJoinPool(ptmThreadNum);
+        }
+        SlowScanRecorder slowScanRecorder = null;
+        if (slowScanNum > 0) {
+            slowScanRecorder = new SlowScanRecorder(slowScanNum);
+        }
         PrepareSpectrum preSpectrum = new PrepareSpectrum(massTool);
-        ArrayList<Future<PIPIWrap.Entry>> taskList = new ArrayList<>(preSpectra.getUsefulSpectraNum() + 10);
-        Connection sqlConnection = DriverManager.getConnection(sqlPath);
-        Statement sqlStatement = sqlConnection.createStatement();
-        ResultSet sqlResultSet = sqlStatement.executeQuery("SELECT scanId, precursorCharge, precursorMass FROM spectraTable");
-        ReentrantLock lock = new ReentrantLock();
         Binomial binomial = new Binomial(Integer.valueOf(parameterMap.get("max_peptide_length")) * 2);
-        while (sqlResultSet.next()) {
-            String scanId = sqlResultSet.getString("scanId");
-            int precursorCharge = sqlResultSet.getInt("precursorCharge");
-            double precursorMass = sqlResultSet.getDouble("precursorMass");
-            taskList.add(threadPool.submit(new PIPIWrap(buildIndex, massTool, ms1Tolerance, leftInverseMs1Tolerance, rightInverseMs1Tolerance, ms1ToleranceUnit, ms2Tolerance, inferPTM.getMinPtmMass(), inferPTM.getMaxPtmMass(), Math.min(precursorCharge > 1 ? precursorCharge - 1 : 1, 3), spectraParser, minClear, maxClear, lock, scanId, precursorCharge, precursorMass, inferPTM, preSpectrum, sqlPath, binomial)));
-        }
-        sqlResultSet.close();
-        sqlStatement.close();
-
-        // check progress every minute, record results,and delete finished tasks.
-        PreparedStatement sqlPreparedStatement = sqlConnection.prepareStatement("REPLACE INTO spectraTable (scanNum, scanId, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, labelling, peptide, theoMass, isDecoy, globalRank, normalizedCorrelationCoefficient, score, deltaLCn, deltaCn, matchedPeakNum, ionFrac, matchedHighestIntensityFrac, explainedAaFrac, otherPtmPatterns, aScore) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-        sqlConnection.setAutoCommit(false);
+
+        // The scans are read from the store lazily, in the store's order, and every task searches taskScanNum of them one at a time. Only a bounded number of tasks are in flight, so that the finished results are collected while searching.
+        Iterator<ScanMeta> scanIterator = resultStore.scanIterator();
+        int maxInFlightTaskNum = threadNum * inFlightTaskNumPerThread;
+        int totalCount = resultStore.getScanNum();
+        int finishedCount = 0; // scans
+        Map<Future<List<PIPIWrap.Entry>>, Integer> inFlightScanNumMap = new HashMap<>();
         int lastProgress = 0;
-        int resultCount = 0;
-        int totalCount = taskList.size();
-        int count = 0;
-        while (count < totalCount) {
-            // record search results and delete finished ones.
-            List<Future<PIPIWrap.Entry>> toBeDeleteTaskList = new ArrayList<>(totalCount - count);
-            for (Future<PIPIWrap.Entry> task : taskList) {
-                if (task.isDone()) {
-                    if (task.get() != null) {
-                        PIPIWrap.Entry entry = task.get();
-                        sqlPreparedStatement.setInt(1, entry.scanNum);
-                        sqlPreparedStatement.setString(2, entry.scanId);
-                        sqlPreparedStatement.setInt(3, entry.precursorCharge);
-                        sqlPreparedStatement.setDouble(4, entry.precursorMass);
-                        sqlPreparedStatement.setString(5, entry.mgfTitle);
-                        sqlPreparedStatement.setInt(6, entry.isotopeCorrectionNum);
-                        sqlPreparedStatement.setDouble(7, entry.ms1PearsonCorrelationCoefficient);
-                        sqlPreparedStatement.setString(8, entry.labelling);
-                        sqlPreparedStatement.setString(9, entry.peptide);
-                        sqlPreparedStatement.setDouble(10, entry.theoMass);
-                        sqlPreparedStatement.setInt(11, entry.isDecoy);
-                        sqlPreparedStatement.setInt(12, entry.globalRank);
-                        sqlPreparedStatement.setDouble(13, entry.normalizedCorrelationCoefficient);
-                        sqlPreparedStatement.setDouble(14, entry.score);
-                        sqlPreparedStatement.setDouble(15, entry.deltaLCn);
-                        sqlPreparedStatement.setDouble(16, entry.deltaCn);
-                        sqlPreparedStatement.setInt(17, entry.matchedPeakNum);
-                        sqlPreparedStatement.setDouble(18, entry.ionFrac);
-                        sqlPreparedStatement.setDouble(19, entry.matchedHighestIntensityFrac);
-                        sqlPreparedStatement.setDouble(20, entry.explainedAaFrac);
-                        sqlPreparedStatement.setString(21, entry.otherPtmPatterns);
-                        sqlPreparedStatement.setString(22, entry.aScore);
-                        sqlPreparedStatement.executeUpdate();
-                        ++resultCount;
-                    }
-                    toBeDeleteTaskList.add(task);
-                } else if (task.isCancelled()) {
-                    toBeDeleteTaskList.add(task);
+        while (true) {
+            while (scanIterator.hasNext() && inFlightScanNumMap.size() < maxInFlightTaskNum) {
+                List<ScanMeta> taskScanMetaList = new ArrayList<>(taskScanNum);
+                while (scanIterator.hasNext() && taskScanMetaList.size() < taskScanNum) {
+                    taskScanMetaList.add(scanIterator.next());
                 }
+                Future<List<PIPIWrap.Entry>> future = completionService.submit(new PIPIWrap(buildIndex, massTool, ms1Tolerance, leftInverseMs1Tolerance, rightInverseMs1Tolerance, ms1ToleranceUnit, ms2Tolerance, inferPTM.getMinPtmMass(), inferPTM.getMaxPtmMass(), spectrumStore, minClear, maxClear, taskScanMetaList, inferPTM, preSpectrum, binomial, ptmPool, slowScanRecorder));
+                inFlightScanNumMap.put(future, taskScanMetaList.size());
             }
-            count += toBeDeleteTaskList.size();
-            taskList.removeAll(toBeDeleteTaskList);
-            taskList.trimToSize();
 
-            sqlConnection.commit();
+            if (inFlightScanNumMap.isEmpty()) {
+                break;
+            }
 
-            int progress = count * 20 / totalCount;
+            Future<List<PIPIWrap.Entry>> future = completionService.take();
+            finishedCount += inFlightScanNumMap.remove(future);
+            for (PIPIWrap.Entry entry : future.get()) {
+                long resultStartTime = System.nanoTime();
+                resultStore.addResult(entry);
+                Metrics.record(Metrics.Stage.RESULT_STORE, resultStartTime);
+            }
+
+            int progress = finishedCount * 20 / Math.max(totalCount, finishedCount);
             if (progress != lastProgress) {
                 logger.info("Searching {}%...", progress * 5);
                 lastProgress = progress;
             }
-
-            if (count == totalCount) {
-                break;
-            }
-            Thread.sleep(6000);
+        }
+        resultStore.finishResults();
+        logger.info("PTM combinations: {} enumerated, {} pruned by mass bounds, {} scored.", inferPTM.getEnumeratedNodeNum(), inferPTM.getPrunedBranchNum(), inferPTM.getEvaluatedCandidateNum());
+
+        // All tasks have been collected, so the per-thread records are complete.
+        Metrics.Histogram[] histogramArray = Metrics.merge();
+        Metrics.logSummary(logger, histogramArray);
+        Map<String, Long> counterMap = new LinkedHashMap<>();
+        counterMap.put("scan_num", (long) totalCount);
+        counterMap.put("result_num", (long) resultStore.getResultNum());
+        counterMap.put("ptm_enumerated_node_num", inferPTM.getEnumeratedNodeNum());
+        counterMap.put("ptm_pruned_branch_num", inferPTM.getPrunedBranchNum());
+        counterMap.put("ptm_evaluated_candidate_num", inferPTM.getEvaluatedCandidateNum());
+        Metrics.writeJson(spectraPath + "." + labelling + ".pipi.metrics.json", histogramArray, counterMap);
+
+        if (slowScanRecorder != null) {
+            String slowScanPath = spectraPath + "." + labelling + ".pipi.slow_scans.txt";
+            slowScanRecorder.logSummary(logger);
+            slowScanRecorder.write(slowScanPath);
+            logger.info("Saved the {} slowest scans to {}.", slowScanNum, slowScanPath);
         }
 
         // shutdown threads.
@@ -245,20 +251,24 @@ public class PIPI {
             if (!threadPool.awaitTermination(60, TimeUnit.SECONDS))
                 throw new Exception("Pool did not terminate");
         }
-
-        sqlConnection.commit();
-        sqlConnection.setAutoCommit(true);
-        sqlConnection.close();
-        if (lock.isLocked()) {
-            lock.unlock();
+        if (ptmPool != null) {
+            ptmPool.shutdown();
+            if (!ptmPool.awaitTermination(60, TimeUnit.SECONDS)) {
+                ptmPool.shutdownNow();
+                if (!ptmPool.awaitTermination(60, TimeUnit.SECONDS))
+                    throw new Exception("Pool did not terminate");
+            }
         }
+        spectrumStore.close();
 
-        if (resultCount == 0) {
+        if (resultStore.getResultNum() == 0) {
             throw new Exception("There is no useful results.");
         }
 
+        // The results are streamed twice: once into the Percolator input, and once into the CSV and pepXML files after the Percolator scores are back. No PSM is kept between the passes.
+        PeptideIndex peptideIndex = buildIndex.getPeptideIndex();
         String percolatorInputFileName = spectraPath + "." + labelling + ".input.temp";
-        writePercolator(percolatorInputFileName, buildIndex.getPeptide0Map(), sqlPath);
+        writePercolator(percolatorInputFileName, resultStore, peptideIndex);
         Map<Integer, PercolatorEntry> percolatorResultMap = null;
 
         if (parameterMap.get("add_decoy").contentEquals("0")) {
@@ -281,8 +291,21 @@ public class PIPI {
         }
 
         logger.info("Saving results...");
-        writeFinalResult(percolatorResultMap, spectraPath + "." + labelling + ".pipi.csv", buildIndex.getPeptide0Map(), sqlPath);
-        new WritePepXml(spectraPath + "." + labelling + ".pipi.pep.xml", spectraPath, parameterMap, massTool.getMassTable(), percolatorResultMap, buildIndex.getPeptide0Map(), buildIndex.returnFixModMap(), sqlPath);
+        WritePepXml writePepXml = new WritePepXml(spectraPath + "." + labelling + ".pipi.pep.xml", spectraPath, parameterMap, massTool.getMassTable(), percolatorResultMap, buildIndex.returnFixModMap());
+        writeFinalResult(percolatorResultMap, spectraPath + "." + labelling + ".pipi.csv", writePepXml, resultStore, peptideIndex);
+        resultStore.close();
+    }
+
+    // A file that is still mapped cannot be deleted on Windows. The mappings are released when their buffers are collected, so the deletion is tried again after a GC and then left to the JVM exit.
+    private static void deleteTempFile(File file) {
+        if (!file.exists() || file.delete()) {
+            return;
+        }
+        System.gc();
+        if (!file.delete()) {
+            logger.warn("Cannot delete {} now. It will be deleted when PIPI exits.", file.getAbsolutePath());
+            file.deleteOnExit();
+        }
     }
 
     private static void help() {
@@ -298,58 +321,40 @@ public class PIPI {
         System.exit(1);
     }
 
-    private void writePercolator(String resultPath, Map<String, Peptide0> peptide0Map, String sqlPath) throws IOException, SQLException {
+    private static PsmEntry toPsmEntry(PIPIWrap.Entry entry, PeptideIndex peptideIndex) {
+        String ptmFreePeptide = entry.peptide.replaceAll("[^ncA-Z]+", "");
+        Peptide0 peptide0 = peptideIndex.getPeptide0(ptmFreePeptide);
+        TreeSet<String> proteinIdSet = new TreeSet<>();
+        for (String protein : peptide0.proteins) {
+            proteinIdSet.add(protein.trim());
+        }
+        return new PsmEntry(entry, ptmFreePeptide, peptide0, proteinIdSet, getMassDiff(entry.precursorMass, entry.theoMass, MassTool.C13_DIFF));
+    }
+
+    private void writePercolator(String resultPath, ResultStore resultStore, PeptideIndex peptideIndex) throws Exception {
         BufferedWriter writer = new BufferedWriter(new FileWriter(resultPath));
         writer.write("id\tlabel\tscannr\texpmass\tcalcmass\tscore\tdelta_c_n\tdelta_L_c_n\tnormalized_cross_corr\tglobal_search_rank\tabs_ppm\tion_frac\tmatched_high_peak_frac\tcharge1\tcharge2\tcharge3\tcharge4\tcharge5\tcharge6\texplained_aa_frac\tpeptide\tprotein\n");
-        Connection sqlConnection = DriverManager.getConnection(sqlPath);
-        Statement sqlStatement = sqlConnection.createStatement();
-        ResultSet sqlResultSet = sqlStatement.executeQuery("SELECT scanNum, precursorCharge, precursorMass, peptide, theoMass, isDecoy, globalRank, normalizedCorrelationCoefficient, score, deltaLCn, deltaCn, matchedPeakNum, ionFrac, matchedHighestIntensityFrac, explainedAaFrac FROM spectraTable");
-        while (sqlResultSet.next()) {
-            String peptide = sqlResultSet.getString("peptide");
-            if (!sqlResultSet.wasNull()) {
-                int charge = sqlResultSet.getInt("precursorCharge");
-                double theoMass = sqlResultSet.getDouble("theoMass");
-                double expMass = sqlResultSet.getDouble("precursorMass");
-                double massDiff = getMassDiff(expMass, theoMass, MassTool.C13_DIFF);
-
-                Peptide0 peptide0 = peptide0Map.get(peptide.replaceAll("[^ncA-Z]+", ""));
-                TreeSet<String> proteinIdSet = new TreeSet<>();
-                for (String protein : peptide0.proteins) {
-                    proteinIdSet.add(protein.trim());
-                }
-
-                StringBuilder sb = new StringBuilder(20);
-                for (int i = 0; i < 6; ++i) {
-                    if (i == charge - 1) {
-                        sb.append(1);
-                    } else {
-                        sb.append(0);
-                    }
-                    sb.append("\t");
-                }
-
-                int scanNum = sqlResultSet.getInt("scanNum");
-                int isDecoy = sqlResultSet.getInt("isDecoy");
-                int globalRank = sqlResultSet.getInt("globalRank");
-                double normalizedCorrelationCoefficient = sqlResultSet.getDouble("normalizedCorrelationCoefficient");
-                double score = sqlResultSet.getDouble("score");
-                double deltaLCn = sqlResultSet.getDouble("deltaLCn");
-                double deltaCn = sqlResultSet.getDouble("deltaCn");
-                double ionFrac = sqlResultSet.getDouble("ionFrac");
-                double matchedHighestIntensityFrac = sqlResultSet.getDouble("matchedHighestIntensityFrac");
-                double explainedAaFrac = sqlResultSet.getDouble("explainedAaFrac");
-
-                if (isDecoy == 1) {
-                    writer.write(scanNum + "\t-1\t" + scanNum + "\t" + expMass + "\t" + theoMass + "\t" + score + "\t" + deltaCn + "\t" + deltaLCn + "\t" + normalizedCorrelationCoefficient + "\t" + globalRank + "\t" + Math.abs(massDiff * 1e6 / theoMass) + "\t" + ionFrac + "\t" + matchedHighestIntensityFrac + "\t" + sb.toString() + explainedAaFrac + "\t" + peptide0.leftFlank + "." + peptide.replaceAll("\\(", "[").replaceAll("\\)", "]") + "." + peptide0.rightFlank + "\t" + String.join("\t", proteinIdSet) + "\n"); // Percolator only recognize "[]".
+        Iterator<PIPIWrap.Entry> resultIterator = resultStore.resultIterator();
+        while (resultIterator.hasNext()) {
+            PsmEntry psmEntry = toPsmEntry(resultIterator.next(), peptideIndex);
+            PIPIWrap.Entry entry = psmEntry.entry;
+            Peptide0 peptide0 = psmEntry.peptide0;
+            int charge = entry.precursorCharge;
+
+            StringBuilder sb = new StringBuilder(20);
+            for (int i = 0; i < 6; ++i) {
+                if (i == charge - 1) {
+                    sb.append(1);
                 } else {
-                    writer.write(scanNum + "\t1\t" + scanNum + "\t" + expMass + "\t" + theoMass + "\t" + score + "\t" + deltaCn + "\t" + deltaLCn + "\t" + normalizedCorrelationCoefficient + "\t" + globalRank + "\t" + Math.abs(massDiff * 1e6 / theoMass) + "\t" + ionFrac + "\t" + matchedHighestIntensityFrac + "\t" + sb.toString() + explainedAaFrac + "\t" + peptide0.leftFlank + "." + peptide.replaceAll("\\(", "[").replaceAll("\\)", "]") + "." + peptide0.rightFlank + "\t" + String.join("\t", proteinIdSet) + "\n"); // Percolator only recognize "[]".
+                    sb.append(0);
                 }
+                sb.append("\t");
             }
+
+            int scanNum = entry.scanNum;
+            writer.write(scanNum + (entry.isDecoy == 1 ? "\t-1\t" : "\t1\t") + scanNum + "\t" + entry.precursorMass + "\t" + entry.theoMass + "\t" + entry.score + "\t" + entry.deltaCn + "\t" + entry.deltaLCn + "\t" + entry.normalizedCorrelationCoefficient + "\t" + entry.globalRank + "\t" + psmEntry.ppm + "\t" + entry.ionFrac + "\t" + entry.matchedHighestIntensityFrac + "\t" + sb.toString() + entry.explainedAaFrac + "\t" + peptide0.leftFlank + "." + entry.peptide.replace('(', '[').replace(')', ']') + "." + peptide0.rightFlank + "\t" + String.join("\t", psmEntry.proteinIdSet) + "\n"); // Percolator only recognize "[]".
         }
         writer.close();
-        sqlResultSet.close();
-        sqlStatement.close();
-        sqlConnection.close();
     }
 
     private static Map<Integer, PercolatorEntry> runPercolator(String percolatorPath, String percolatorInputFileName, String percolatorOutputFileName, String percolatorProteinOutputFileName, String tdFastaPath, String enzymeName) throws Exception {
@@ -431,7 +436,8 @@ public class PIPI {
         return percolatorResultMap;
     }
 
-    private void writeFinalResult(Map<Integer, PercolatorEntry> percolatorResultMap, String outputPath, Map<String, Peptide0> peptide0Map, String sqlPath) throws IOException, SQLException {
+    // Writes the CSV file and the PSMs of the pepXML file in one pass over the results. Only the CSV lines of the targets are kept to sort them by score.
+    private void writeFinalResult(Map<Integer, PercolatorEntry> percolatorResultMap, String outputPath, WritePepXml writePepXml, ResultStore resultStore, PeptideIndex peptideIndex) throws Exception {
         TreeMap<Double, List<String>> tempMap = new TreeMap<>();
 
         BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath));
@@ -441,60 +447,36 @@ public class PIPI {
             writer.write("scan_num,peptide,charge,theo_mass,exp_mass,abs_ppm,A_score,protein_ID,score,delta_C_n,percolator_score,posterior_error_prob,q_value,other_PTM_patterns,MGF_title,labelling,isotope_correction,MS1_pearson_correlation_coefficient\n");
         }
 
-        Connection sqlConnection = DriverManager.getConnection(sqlPath);
-        Statement sqlStatement = sqlConnection.createStatement();
-        ResultSet sqlResultSet = sqlStatement.executeQuery("SELECT scanNum, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, labelling, peptide, theoMass, isDecoy, score, otherPtmPatterns, aScore, deltaCn FROM spectraTable");
-        while (sqlResultSet.next()) {
-            int isDecoy = sqlResultSet.getInt("isDecoy");
-            if (!sqlResultSet.wasNull()) {
-                if (isDecoy == 0) {
-                    int scanNum = sqlResultSet.getInt("scanNum");
-                    double expMass = sqlResultSet.getDouble("precursorMass");
-                    String peptide = sqlResultSet.getString("peptide");
-                    double theoMass = sqlResultSet.getDouble("theoMass");
-                    double massDiff = getMassDiff(expMass, theoMass, MassTool.C13_DIFF);
-                    double ppm = Math.abs(massDiff * 1e6 / theoMass);
-
-                    Peptide0 peptide0 = peptide0Map.get(peptide.replaceAll("[^ncA-Z]+", ""));
-                    TreeSet<String> proteinIdSet = new TreeSet<>();
-                    for (String protein : peptide0.proteins) {
-                        proteinIdSet.add(protein.trim());
-                    }
-
-                    String aScore = sqlResultSet.getString("aScore");
-
-                    if (percolatorResultMap == null) {
-                        double score = sqlResultSet.getDouble("score");
-                        String str = String.format(Locale.US, "%d,%s,%d,%f,%f,%f,%s,%s,%f,%f,%s,\"%s\",%s,%d,%f\n", scanNum, peptide, sqlResultSet.getInt("precursorCharge"), theoMass, expMass, ppm, aScore, String.join(";", proteinIdSet).replaceAll(",", "~"), score, sqlResultSet.getDouble("deltaCn"), sqlResultSet.getString("otherPtmPatterns"), sqlResultSet.getString("mgfTitle"), sqlResultSet.getString("labelling"), sqlResultSet.getInt("isotopeCorrectionNum"), sqlResultSet.getDouble("ms1PearsonCorrelationCoefficient"));
-                        if (tempMap.containsKey(score)) {
-                            tempMap.get(score).add(str);
-                        } else {
-                            List<String> tempList = new LinkedList<>();
-                            tempList.add(str);
-                            tempMap.put(score, tempList);
-                        }
-                    } else {
-                        PercolatorEntry percolatorEntry = percolatorResultMap.get(scanNum);
-                        String str = String.format(Locale.US, "%d,%s,%d,%f,%f,%f,%s,%s,%f,%f,%f,%s,%s,%s,\"%s\",%s,%d,%f\n", scanNum, peptide, sqlResultSet.getInt("precursorCharge"), theoMass, expMass, ppm, aScore, String.join(";", proteinIdSet).replaceAll(",", "~"), sqlResultSet.getDouble("score"), sqlResultSet.getDouble("deltaCn"), percolatorEntry.percolatorScore, percolatorEntry.PEP, percolatorEntry.qValue, sqlResultSet.getString("otherPtmPatterns"), sqlResultSet.getString("mgfTitle"), sqlResultSet.getString("labelling"), sqlResultSet.getInt("isotopeCorrectionNum"), sqlResultSet.getDouble("ms1PearsonCorrelationCoefficient"));
-                        if (tempMap.containsKey(percolatorResultMap.get(scanNum).percolatorScore)) {
-                            tempMap.get(percolatorResultMap.get(scanNum).percolatorScore).add(str);
-                        } else {
-                            List<String> tempList = new LinkedList<>();
-                            tempList.add(str);
-                            tempMap.put(percolatorResultMap.get(scanNum).percolatorScore, tempList);
-                        }
-                    }
+        Iterator<PIPIWrap.Entry> resultIterator = resultStore.resultIterator();
+        while (resultIterator.hasNext()) {
+            PsmEntry psmEntry = toPsmEntry(resultIterator.next(), peptideIndex);
+            writePepXml.write(psmEntry);
+            PIPIWrap.Entry entry = psmEntry.entry;
+            if (entry.isDecoy == 0) {
+                int scanNum = entry.scanNum;
+                String proteinIdStr = psmEntry.proteinIdStr.replace(',', '~');
+
+                double sortScore;
+                String str;
+                if (percolatorResultMap == null) {
+                    sortScore = entry.score;
+                    str = String.format(Locale.US, "%d,%s,%d,%f,%f,%f,%s,%s,%f,%f,%s,\"%s\",%s,%d,%f\n", scanNum, entry.peptide, entry.precursorCharge, entry.theoMass, entry.precursorMass, psmEntry.ppm, entry.aScore, proteinIdStr, entry.score, entry.deltaCn, entry.otherPtmPatterns, entry.mgfTitle, entry.labelling, entry.isotopeCorrectionNum, entry.ms1PearsonCorrelationCoefficient);
+                } else {
+                    PercolatorEntry percolatorEntry = percolatorResultMap.get(scanNum);
+                    sortScore = percolatorEntry.percolatorScore;
+                    str = String.format(Locale.US, "%d,%s,%d,%f,%f,%f,%s,%s,%f,%f,%f,%s,%s,%s,\"%s\",%s,%d,%f\n", scanNum, entry.peptide, entry.precursorCharge, entry.theoMass, entry.precursorMass, psmEntry.ppm, entry.aScore, proteinIdStr, entry.score, entry.deltaCn, percolatorEntry.percolatorScore, percolatorEntry.PEP, percolatorEntry.qValue, entry.otherPtmPatterns, entry.mgfTitle, entry.labelling, entry.isotopeCorrectionNum, entry.ms1PearsonCorrelationCoefficient);
+                }
+                List<String> tempList = tempMap.get(sortScore);
+                if (tempList == null) {
+                    tempList = new LinkedList<>();
+                    tempMap.put(sortScore, tempList);
                 }
+                tempList.add(str);
             }
         }
+        writePepXml.close();
 
-        sqlResultSet.close();
-        sqlStatement.close();
-        sqlConnection.close();
-
-        Double[] tempArray = tempMap.keySet().toArray(new Double[0]);
-        for (int i = tempArray.length - 1; i >= 0; --i) {
-            List<String> tempList = tempMap.get(tempArray[i]);
+        for (List<String> tempList : tempMap.descendingMap().values()) {
             for (String tempStr : tempList) {
                 writer.write(tempStr);
             }
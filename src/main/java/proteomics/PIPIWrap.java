@@ -2,6 +2,7 @@ package proteomics;
 
 import ProteomicsLibrary.Score;
 import proteomics.Index.BuildIndex;
+import proteomics.Index.PeptideIndex;
 import proteomics.PTM.InferPTM;
 import ProteomicsLibrary.Binomial;
 import proteomics.Search.CalSubscores;
@@ -11,15 +12,15 @@ import ProteomicsLibrary.PrepareSpectrum;
 import ProteomicsLibrary.MassTool;
 import ProteomicsLibrary.Types.*;
 import proteomics.Spectrum.PreSpectra;
+import proteomics.Spectrum.SpectrumStore;
 import proteomics.Types.*;
-import uk.ac.ebi.pride.tools.jmzreader.JMzReader;
 
-import java.sql.*;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-public class PIPIWrap implements Callable<PIPIWrap.Entry> {
+public class PIPIWrap implements Callable<List<PIPIWrap.Entry>> {
 
     private final BuildIndex buildIndex;
     private final MassTool massTool;
@@ -30,22 +31,18 @@ public class PIPIWrap implements Callable<PIPIWrap.Entry> {
     private final double ms2Tolerance;
     private final double minPtmMass;
     private final double maxPtmMass;
-    private final int localMaxMs2Charge;
-    private final Map<String, Peptide0> peptide0Map;
-    private final JMzReader spectraParser;
+    private final PeptideIndex peptideIndex;
+    private final SpectrumStore spectrumStore;
     private final double minClear;
     private final double maxClear;
-    private final ReentrantLock lock;
-    private final String scanId;
-    private final int precursorCharge;
-    private final double precursorMass;
+    private final List<ScanMeta> scanMetaList;
     private final InferPTM inferPTM;
     private final PrepareSpectrum preSpectrum;
-    private final String sqlPath;
     private final Binomial binomial;
+    private final ForkJoinPool ptmPool; // null = infer PTMs in this thread.
+    private final SlowScanRecorder slowScanRecorder; // null = don't record slow scans.
 
-
-    public PIPIWrap(BuildIndex buildIndex, MassTool massTool, double ms1Tolerance, double leftInverseMs1Tolerance, double rightInverseMs1Tolerance, int ms1ToleranceUnit, double ms2Tolerance, double minPtmMass, double maxPtmMass, int localMaxMs2Charge, JMzReader spectraParser, double minClear, double maxClear, ReentrantLock lock, String scanId, int precursorCharge, double precursorMass, InferPTM inferPTM, PrepareSpectrum preSpectrum, String sqlPath, Binomial binomial) {
+    public PIPIWrap(BuildIndex buildIndex, MassTool massTool, double ms1Tolerance, double leftInverseMs1Tolerance, double rightInverseMs1Tolerance, int ms1ToleranceUnit, double ms2Tolerance, double minPtmMass, double maxPtmMass, SpectrumStore spectrumStore, double minClear, double maxClear, List<ScanMeta> scanMetaList, InferPTM inferPTM, PrepareSpectrum preSpectrum, Binomial binomial, ForkJoinPool ptmPool, SlowScanRecorder slowScanRecorder) {
         this.buildIndex = buildIndex;
         this.massTool = massTool;
         this.ms1Tolerance = ms1Tolerance;
@@ -55,69 +52,137 @@ public class PIPIWrap implements Callable<PIPIWrap.Entry> {
         this.ms2Tolerance = ms2Tolerance;
         this.minPtmMass = minPtmMass;
         this.maxPtmMass = maxPtmMass;
-        this.localMaxMs2Charge = localMaxMs2Charge;
-        this.spectraParser = spectraParser;
+        this.spectrumStore = spectrumStore;
         this.minClear = minClear;
         this.maxClear = maxClear;
-        this.lock = lock;
-        this.scanId = scanId;
-        this.precursorCharge = precursorCharge;
-        this.precursorMass = precursorMass;
+        this.scanMetaList = scanMetaList;
         this.inferPTM = inferPTM;
         this.preSpectrum = preSpectrum;
-        this.sqlPath = sqlPath;
         this.binomial = binomial;
-        peptide0Map = buildIndex.getPeptide0Map();
+        this.ptmPool = ptmPool;
+        this.slowScanRecorder = slowScanRecorder;
+        peptideIndex = buildIndex.getPeptideIndex();
+    }
+
+    // Only for search(), with the PTMs inferred in this thread and no slow scan recording. There is no scan to read, so call() returns nothing.
+    PIPIWrap(BuildIndex buildIndex, MassTool massTool, double ms1Tolerance, double leftInverseMs1Tolerance, double rightInverseMs1Tolerance, int ms1ToleranceUnit, double ms2Tolerance, double minPtmMass, double maxPtmMass, InferPTM inferPTM, PrepareSpectrum preSpectrum, Binomial binomial) {
+        this(buildIndex, massTool, ms1Tolerance, leftInverseMs1Tolerance, rightInverseMs1Tolerance, ms1ToleranceUnit, ms2Tolerance, minPtmMass, maxPtmMass, null, 0, 0, Collections.emptyList(), inferPTM, preSpectrum, binomial, null, null);
     }
 
     @Override
-    public Entry call() throws Exception {
-        Map<Double, Double> rawPLMap;
-        try {
-            lock.lock();
-            // Reading peak list.
-            rawPLMap = spectraParser.getSpectrumById(scanId).getPeakList();
-        } finally {
-            lock.unlock();
-        }
+    public List<Entry> call() throws Exception {
+        List<SlowScanRecorder.Scan> scanList = new ArrayList<>(scanMetaList.size());
+        for (ScanMeta scanMeta : scanMetaList) {
+            // Reading peak list. The store is read-only during searching, so there is no lock.
+            long readStartTime = System.nanoTime();
+            Map<Double, Double> rawPLMap = spectrumStore.getPeakList(scanMeta.scanIdx);
+            Metrics.record(Metrics.Stage.SPECTRUM_READ, readStartTime);
 
-        // preprocess peak list
-        TreeMap<Double, Double> plMap = preSpectrum.preSpectrumTopNStyle(rawPLMap, precursorMass, precursorCharge, minClear, maxClear, PreSpectra.topN);
+            // preprocess peak list
+            long startTime = System.nanoTime();
+            TreeMap<Double, Double> plMap = preSpectrum.preSpectrumTopNStyle(rawPLMap, scanMeta.precursorMass, scanMeta.precursorCharge, minClear, maxClear, PreSpectra.topN);
+            Metrics.record(Metrics.Stage.PRE_SPECTRUM, startTime);
 
-        if (plMap.isEmpty()) {
-            return null;
+            if (plMap.isEmpty()) {
+                continue;
+            }
+
+            SlowScanRecorder.Scan scan = new SlowScanRecorder.Scan(scanMeta, plMap);
+            scan.readTime = startTime - readStartTime;
+            scan.preSpectrumTime = System.nanoTime() - startTime;
+            scanList.add(scan);
         }
+        return search(scanList);
+    }
 
-        // Coding
+    // Searches the preprocessed spectra of the task one at a time. Only the ones with tags are searched. The search time and the counts of each scan are added to its profile.
+    List<Entry> search(List<SlowScanRecorder.Scan> scanList) throws Exception {
         InferSegment inferSegment = buildIndex.getInferSegment();
-        List<ThreeExpAA> expAaLists = inferSegment.inferSegmentLocationFromSpectrum(precursorMass, plMap);
-        if (!expAaLists.isEmpty()) {
-            SparseVector scanCode = inferSegment.generateSegmentIntensityVector(expAaLists);
-
-            // Begin search.
-            Search search = new Search(buildIndex, precursorMass, scanCode, massTool, ms1Tolerance, leftInverseMs1Tolerance, rightInverseMs1Tolerance, ms1ToleranceUnit, minPtmMass, maxPtmMass, localMaxMs2Charge);
+        List<Entry> entryList = new ArrayList<>(scanList.size());
+        for (SlowScanRecorder.Scan scan : scanList) {
+            // Coding
+            long startTime = System.nanoTime();
+            List<ThreeExpAA> expAaLists = inferSegment.inferSegmentLocationFromSpectrum(scan.scanMeta.precursorMass, scan.plMap);
+            Metrics.record(Metrics.Stage.INFER_SEGMENT, startTime);
+            scan.tagNum = expAaLists.size();
+            if (!expAaLists.isEmpty()) {
+                SparseVector scanCode = inferSegment.generateSegmentIntensityVector(expAaLists);
 
-            // prepare the spectrum
-            SparseVector expProcessedPL;
-            if (PIPI.useXcorr) {
-                expProcessedPL = preSpectrum.prepareXCorr(plMap, false);
-            } else {
-                expProcessedPL = preSpectrum.digitizePL(plMap);
+                // Begin search.
+                int localMaxMs2Charge = getLocalMaxMs2Charge(scan.scanMeta.precursorCharge);
+                Search search = new Search(buildIndex, scan.scanMeta.precursorMass, scanCode, massTool, ms1Tolerance, leftInverseMs1Tolerance, rightInverseMs1Tolerance, ms1ToleranceUnit, minPtmMass, maxPtmMass, localMaxMs2Charge);
+                scan.candidateNum = search.getPTMOnlyResult().size() + search.getPTMFreeResult().size();
+                Entry entry = scoreScan(scan, search, localMaxMs2Charge);
+                if (entry != null) {
+                    entryList.add(entry);
+                }
             }
+            scan.elapsedTime += System.nanoTime() - startTime;
+        }
 
-            double localMS1ToleranceL = -1 * ms1Tolerance;
-            double localMS1ToleranceR = ms1Tolerance;
-            if (ms1ToleranceUnit == 1) {
-                localMS1ToleranceL = (precursorMass * leftInverseMs1Tolerance) - precursorMass;
-                localMS1ToleranceR = (precursorMass * rightInverseMs1Tolerance) - precursorMass;
+        if (slowScanRecorder != null) {
+            for (SlowScanRecorder.Scan scan : scanList) {
+                slowScanRecorder.offer(scan);
             }
+        }
+        return entryList;
+    }
+
+    private PeptidePTMPattern tryPTM(Peptide peptide, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, double precursorMass, int precursorCharge, int localMaxMs2Charge, double localMS1ToleranceL, double localMS1ToleranceR) {
+        Peptide0 peptide0 = peptideIndex.getPeptide0(peptide.getPTMFreePeptide());
+        return inferPTM.tryPTM(expProcessedPL, plMap, precursorMass, peptide.getPTMFreePeptide(), peptide.isDecoy(), peptide.getNormalizedCrossCorr(), peptide0.leftFlank, peptide0.rightFlank, peptide.getGlobalRank(), precursorCharge, localMaxMs2Charge, localMS1ToleranceL, localMS1ToleranceR);
+    }
+
+    static int getLocalMaxMs2Charge(int precursorCharge) {
+        return Math.min(precursorCharge > 1 ? precursorCharge - 1 : 1, 3);
+    }
+
+    private Entry scoreScan(SlowScanRecorder.Scan scan, Search search, int localMaxMs2Charge) throws Exception {
+        ScanMeta scanMeta = scan.scanMeta;
+        TreeMap<Double, Double> plMap = scan.plMap;
+        double precursorMass = scanMeta.precursorMass;
+        int precursorCharge = scanMeta.precursorCharge;
+
+        // prepare the spectrum
+        SparseVector expProcessedPL;
+        if (PIPI.useXcorr) {
+            expProcessedPL = preSpectrum.prepareXCorr(plMap, false);
+        } else {
+            expProcessedPL = preSpectrum.digitizePL(plMap);
+        }
 
-            // infer PTM using the new approach
-            TreeSet<Peptide> peptideSet = new TreeSet<>(Collections.reverseOrder());
-            Map<String, TreeSet<Peptide>> modSequences = new TreeMap<>();
-            for (Peptide peptide : search.getPTMOnlyResult()) {
-                Peptide0 peptide0 = peptide0Map.get(peptide.getPTMFreePeptide());
-                PeptidePTMPattern peptidePTMPattern = inferPTM.tryPTM(expProcessedPL, plMap, precursorMass, peptide.getPTMFreePeptide(), peptide.isDecoy(), peptide.getNormalizedCrossCorr(), peptide0.leftFlank, peptide0.rightFlank, peptide.getGlobalRank(), precursorCharge, localMaxMs2Charge, localMS1ToleranceL, localMS1ToleranceR);
+        double localMS1ToleranceL = -1 * ms1Tolerance;
+        double localMS1ToleranceR = ms1Tolerance;
+        if (ms1ToleranceUnit == 1) {
+            localMS1ToleranceL = (precursorMass * leftInverseMs1Tolerance) - precursorMass;
+            localMS1ToleranceR = (precursorMass * rightInverseMs1Tolerance) - precursorMass;
+        }
+
+        // infer PTM using the new approach
+        TreeSet<Peptide> peptideSet = new TreeSet<>(Collections.reverseOrder());
+        Map<String, TreeSet<Peptide>> modSequences = new TreeMap<>();
+        List<Peptide> ptmOnlyResult = search.getPTMOnlyResult();
+        List<ForkJoinTask<PeptidePTMPattern>> taskList = null;
+        if (ptmPool != null && ptmOnlyResult.size() > 1) {
+            // the candidates except the first one are inferred in the pool while this thread works on the first one. The results are merged in the candidate order, the same as the serial mode.
+            taskList = new ArrayList<>(ptmOnlyResult.size());
+            taskList.add(null);
+            for (int i = 1; i < ptmOnlyResult.size(); ++i) {
+                Peptide peptide = ptmOnlyResult.get(i);
+                double toleranceL = localMS1ToleranceL;
+                double toleranceR = localMS1ToleranceR;
+                taskList.add(ptmPool.submit(() -> tryPTM(peptide, expProcessedPL, plMap, precursorMass, precursorCharge, localMaxMs2Charge, toleranceL, toleranceR)));
+            }
+        }
+        try {
+            for (int i = 0; i < ptmOnlyResult.size(); ++i) {
+                PeptidePTMPattern peptidePTMPattern;
+                if (taskList == null || i == 0) {
+                    peptidePTMPattern = tryPTM(ptmOnlyResult.get(i), expProcessedPL, plMap, precursorMass, precursorCharge, localMaxMs2Charge, localMS1ToleranceL, localMS1ToleranceR);
+                } else {
+                    peptidePTMPattern = taskList.get(i).join();
+                }
+                scan.ptmPatternNum += peptidePTMPattern.getTriedPatternNum();
                 if (!peptidePTMPattern.getPeptideTreeSet().isEmpty()) {
                     for (Peptide tempPeptide : peptidePTMPattern.getPeptideTreeSet()) {
                         if (tempPeptide.getScore() > 0) {
@@ -133,109 +198,101 @@ public class PIPIWrap implements Callable<PIPIWrap.Entry> {
                     modSequences.put(peptidePTMPattern.ptmFreePeptide, peptidePTMPattern.getPeptideTreeSet());
                 }
             }
-
-            // Calculate Score for PTM free peptide
-            for (Peptide peptide : search.getPTMFreeResult()) {
-                double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
-                if (score > 0) {
-                    peptide.setScore(score);
-                    peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMs2Charge, peptide.getIonMatrix(), ms2Tolerance));
-                    if (peptideSet.size() < 5) {
-                        peptideSet.add(peptide);
-                    } else if (peptide.getScore() > peptideSet.last().getScore()) {
-                        peptideSet.pollLast();
-                        peptideSet.add(peptide);
-                    }
+        } finally {
+            if (taskList != null) {
+                // the candidates still in the pool are dropped if the first one or a join failed. Finished tasks ignore it.
+                for (int i = 1; i < taskList.size(); ++i) {
+                    taskList.get(i).cancel(true);
                 }
             }
+        }
 
-            if (!peptideSet.isEmpty()) {
-                Peptide[] peptideArray = peptideSet.toArray(new Peptide[0]);
-                Peptide topPeptide = peptideArray[0];
-                TreeSet<Peptide> ptmPatterns = null;
-                if (topPeptide.hasVarPTM()) {
-                    ptmPatterns = modSequences.get(topPeptide.getPTMFreePeptide());
+        // Calculate Score for PTM free peptide
+        for (Peptide peptide : search.getPTMFreeResult()) {
+            long startTime = System.nanoTime();
+            double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
+            Metrics.record(Metrics.Stage.PTM_FREE_XCORR, startTime);
+            if (score > 0) {
+                peptide.setScore(score);
+                peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMs2Charge, peptide.getIonMatrix(), ms2Tolerance));
+                if (peptideSet.size() < 5) {
+                    peptideSet.add(peptide);
+                } else if (peptide.getScore() > peptideSet.last().getScore()) {
+                    peptideSet.pollLast();
+                    peptideSet.add(peptide);
                 }
-                new CalSubscores(topPeptide, ms2Tolerance, plMap, precursorCharge, ptmPatterns, binomial);
-
-                Connection sqlConnection = DriverManager.getConnection(sqlPath);
-                Statement sqlStatement = sqlConnection.createStatement();
-                ResultSet sqlResultSet = sqlStatement.executeQuery(String.format(Locale.US, "SELECT scanNum, scanId, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, isDecoy, score FROM spectraTable WHERE scanId='%s'", scanId));
-                if (sqlResultSet.next()) {
-                    int scanNum = sqlResultSet.getInt("scanNum");
-                    String scanId = sqlResultSet.getString("scanId");
-                    int precursorCharge = sqlResultSet.getInt("precursorCharge");
-                    double precursorMass = sqlResultSet.getDouble("precursorMass");
-                    String mgfTitle = sqlResultSet.getString("mgfTitle");
-                    int isotopeCorrectionNum = sqlResultSet.getInt("isotopeCorrectionNum");
-                    double ms1PearsonCorrelationCoefficient = sqlResultSet.getDouble("ms1PearsonCorrelationCoefficient");
-
-                    double deltaLCn = 1;
-                    if (peptideArray.length > 4) {
-                        deltaLCn = (peptideArray[0].getScore() - peptideArray[4].getScore()) / peptideArray[0].getScore();
-                    }
-                    double deltaCn = 1;
-                    if (peptideArray.length > 1) {
-                        deltaCn = (peptideArray[0].getScore() - peptideArray[1].getScore()) / peptideArray[0].getScore();
-                    }
+            }
+        }
 
-                    String otherPtmPatterns = "-";
-                    if (ptmPatterns != null) {
-                        List<String> tempList = new LinkedList<>();
-                        Iterator<Peptide> ptmPatternsIterator = ptmPatterns.iterator();
-                        ptmPatternsIterator.next();
-                        while (ptmPatternsIterator.hasNext()) {
-                            Peptide temp = ptmPatternsIterator.next();
-                            tempList.add(String.format(Locale.US, "%s-%.4f", temp.getPtmContainingSeq(buildIndex.returnFixModMap()), temp.getScore())); // Using 4 decimal here because it is write the the result file for checking. It is not used in scoring or other purpose.
-                        }
-                        otherPtmPatterns = String.join(";", tempList);
-                    }
+        if (!peptideSet.isEmpty()) {
+            Peptide[] peptideArray = peptideSet.toArray(new Peptide[0]);
+            Peptide topPeptide = peptideArray[0];
+            TreeSet<Peptide> ptmPatterns = null;
+            if (topPeptide.hasVarPTM()) {
+                ptmPatterns = modSequences.get(topPeptide.getPTMFreePeptide());
+            }
+            long startTime = System.nanoTime();
+            new CalSubscores(topPeptide, ms2Tolerance, plMap, precursorCharge, ptmPatterns, binomial);
+            Metrics.record(Metrics.Stage.CAL_SUBSCORES, startTime);
 
-                    Entry entry = new Entry(scanNum, scanId, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, buildIndex.getLabelling(), topPeptide.getPtmContainingSeq(buildIndex.returnFixModMap()), topPeptide.getTheoMass(), topPeptide.isDecoy() ? 1 : 0, topPeptide.getGlobalRank(), topPeptide.getNormalizedCrossCorr(), topPeptide.getScore(), deltaLCn, deltaCn, topPeptide.getMatchedPeakNum(), topPeptide.getIonFrac(), topPeptide.getMatchedHighestIntensityFrac(), topPeptide.getExplainedAaFrac(), otherPtmPatterns, topPeptide.getaScore());
+            double deltaLCn = 1;
+            if (peptideArray.length > 4) {
+                deltaLCn = (peptideArray[0].getScore() - peptideArray[4].getScore()) / peptideArray[0].getScore();
+            }
+            double deltaCn = 1;
+            if (peptideArray.length > 1) {
+                deltaCn = (peptideArray[0].getScore() - peptideArray[1].getScore()) / peptideArray[0].getScore();
+            }
 
-                    sqlResultSet.close();
-                    sqlStatement.close();
-                    return entry;
-                } else {
-                    throw new NullPointerException(String.format(Locale.US, "There is no record %s in the spectraTable.", scanId));
+            String otherPtmPatterns = "-";
+            if (ptmPatterns != null) {
+                List<String> tempList = new LinkedList<>();
+                Iterator<Peptide> ptmPatternsIterator = ptmPatterns.iterator();
+                ptmPatternsIterator.next();
+                while (ptmPatternsIterator.hasNext()) {
+                    Peptide temp = ptmPatternsIterator.next();
+                    tempList.add(String.format(Locale.US, "%s-%.4f", temp.getPtmContainingSeq(buildIndex.returnFixModMap()), temp.getScore())); // Using 4 decimal here because it is write the the result file for checking. It is not used in scoring or other purpose.
                 }
-            } else {
-                return null;
+                otherPtmPatterns = String.join(";", tempList);
             }
+
+            return new Entry(scanMeta.scanNum, scanMeta.scanId, scanMeta.scanIdx, scanMeta.precursorCharge, scanMeta.precursorMass, scanMeta.mgfTitle, scanMeta.isotopeCorrectionNum, scanMeta.ms1PearsonCorrelationCoefficient, buildIndex.getLabelling(), topPeptide.getPtmContainingSeq(buildIndex.returnFixModMap()), topPeptide.getTheoMass(), topPeptide.isDecoy() ? 1 : 0, topPeptide.getGlobalRank(), topPeptide.getNormalizedCrossCorr(), topPeptide.getScore(), deltaLCn, deltaCn, topPeptide.getMatchedPeakNum(), topPeptide.getIonFrac(), topPeptide.getMatchedHighestIntensityFrac(), topPeptide.getExplainedAaFrac(), otherPtmPatterns, topPeptide.getaScore());
         } else {
             return null;
         }
     }
 
 
-    public class Entry {
+    public static class Entry {
 
-        final int scanNum;
-        final String scanId;
-        final int precursorCharge;
-        final double precursorMass;
-        final String mgfTitle;
-        final int isotopeCorrectionNum;
-        final double ms1PearsonCorrelationCoefficient;
-        final String labelling;
+        public final int scanNum;
+        public final String scanId;
+        public final int scanIdx;
+        public final int precursorCharge;
+        public final double precursorMass;
+        public final String mgfTitle;
+        public final int isotopeCorrectionNum;
+        public final double ms1PearsonCorrelationCoefficient;
+        public final String labelling;
         public final String peptide;
-        final double theoMass;
-        final int isDecoy;
-        final int globalRank;
-        final double normalizedCorrelationCoefficient;
+        public final double theoMass;
+        public final int isDecoy;
+        public final int globalRank;
+        public final double normalizedCorrelationCoefficient;
         public final double score;
-        final double deltaLCn;
-        final double deltaCn;
-        final int matchedPeakNum;
-        final double ionFrac;
-        final double matchedHighestIntensityFrac;
-        final double explainedAaFrac;
-        final String otherPtmPatterns; // It has 4 decimal because it is write the the result file for checking. It is not used in scoring or other purpose.
-        final String aScore;
+        public final double deltaLCn;
+        public final double deltaCn;
+        public final int matchedPeakNum;
+        public final double ionFrac;
+        public final double matchedHighestIntensityFrac;
+        public final double explainedAaFrac;
+        public final String otherPtmPatterns; // It has 4 decimal because it is write the the result file for checking. It is not used in scoring or other purpose.
+        public final String aScore;
 
-        Entry(int scanNum, String scanId, int precursorCharge, double precursorMass, String mgfTitle, int isotopeCorrectionNum, double ms1PearsonCorrelationCoefficient, String labelling, String peptide, double theoMass, int isDecoy, int globalRank, double normalizedCorrelationCoefficient, double score, double deltaLCn, double deltaCn, int matchedPeakNum, double ionFrac, double matchedHighestIntensityFrac, double explainedAaFrac, String otherPtmPatterns, String aScore) {
+        public Entry(int scanNum, String scanId, int scanIdx, int precursorCharge, double precursorMass, String mgfTitle, int isotopeCorrectionNum, double ms1PearsonCorrelationCoefficient, String labelling, String peptide, double theoMass, int isDecoy, int globalRank, double normalizedCorrelationCoefficient, double score, double deltaLCn, double deltaCn, int matchedPeakNum, double ionFrac, double matchedHighestIntensityFrac, double explainedAaFrac, String otherPtmPatterns, String aScore) {
             this.scanNum = scanNum;
             this.scanId = scanId;
+            this.scanIdx = scanIdx;
             this.precursorCharge = precursorCharge;
             this.precursorMass = precursorMass;
             this.mgfTitle = mgfTitle;
@@ -5,11 +5,13 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import ProteomicsLibrary.MassTool;
 import ProteomicsLibrary.Types.*;
+import proteomics.Metrics;
 import proteomics.OutputPeff;
 import proteomics.Types.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,6 +20,12 @@ public class InferPTM {
 
     private static final Pattern pattern = Pattern.compile("([0-9A-Za-z]+)(\\(([0-9\\-]+)\\))?");
     private static final double ptmMassTolerance = 0.1;
+    private static final int maxPtmNum = 5;
+    private static final double massSlack = 1e-6; // keeps the pruning conservative under floating-point summation order.
+    // enumeration counters of this instance. The tasks of one search share it.
+    private final LongAdder enumeratedNodeCounter = new LongAdder();
+    private final LongAdder prunedBranchCounter = new LongAdder();
+    private final LongAdder evaluatedCandidateCounter = new LongAdder();
 
     private final MassTool massTool;
     private final Map<String, Double> elementTable;
@@ -144,34 +152,13 @@ public class InferPTM {
         PeptidePTMPattern peptidePTMPattern = new PeptidePTMPattern(ptmFreePeptide);
 
         // try different PTM combinations
-        Set<String> checkedPtmPattern1 = new HashSet<>();
-        Set<String> checkedPtmPattern2 = new HashSet<>();
-        Set<String> checkedPtmPattern3 = new HashSet<>();
-        Set<String> checkedPtmPattern4 = new HashSet<>();
-        Set<String> checkedPtmPattern5 = new HashSet<>();
-
         Map<Integer, Set<VarModParam>> idxVarModMap = getIdxVarModMap(ptmFreePeptide, fixModIdxes, leftFlank, rightFlank);
-
-        try1PTMs(idxVarModMap, leftMassBound, rightMassBound, ptmFreePeptide, isDecoy, normalizedCrossCorr, globalRank, checkedPtmPattern1, peptidePTMPattern, expProcessedPL, plMap, precursorCharge, localMaxMS2Charge);
-
-        if (idxVarModMap.size() > 1) {
-            // Try 2 PTMs
-            try2PTMs(idxVarModMap, leftMassBound, rightMassBound, ptmFreePeptide, isDecoy, normalizedCrossCorr, globalRank, checkedPtmPattern2, peptidePTMPattern, expProcessedPL, plMap, precursorCharge, localMaxMS2Charge);
-        }
-
-        if (idxVarModMap.size() > 2) {
-            // Try 3 PTMs
-            try3PTMs(idxVarModMap, leftMassBound, rightMassBound, ptmFreePeptide, isDecoy, normalizedCrossCorr, globalRank, checkedPtmPattern3, peptidePTMPattern, expProcessedPL, plMap, precursorCharge, localMaxMS2Charge);
-        }
-
-        if (idxVarModMap.size() > 3) {
-            // Try 4 PTMs
-            try4PTMs(idxVarModMap, leftMassBound, rightMassBound, ptmFreePeptide, isDecoy, normalizedCrossCorr, globalRank, checkedPtmPattern4, peptidePTMPattern, expProcessedPL, plMap, precursorCharge, localMaxMS2Charge);
-        }
-
-        if (idxVarModMap.size() > 4) {
-            // Try 5 PTMs
-            try5PTMs(idxVarModMap, leftMassBound, rightMassBound, ptmFreePeptide, isDecoy, normalizedCrossCorr, globalRank, checkedPtmPattern5, peptidePTMPattern, expProcessedPL, plMap, precursorCharge, localMaxMS2Charge);
+        SiteTable siteTable = new SiteTable(idxVarModMap);
+        IonLadder ionLadder = new IonLadder(ptmFreePeptide, localMaxMS2Charge);
+        for (int k = 1; k <= maxPtmNum && k <= siteTable.siteNum; ++k) {
+            long startTime = System.nanoTime();
+            tryKPTMs(k, siteTable, ionLadder, leftMassBound, rightMassBound, ptmFreePeptide, isDecoy, normalizedCrossCorr, globalRank, peptidePTMPattern, expProcessedPL, plMap, precursorCharge, localMaxMS2Charge);
+            Metrics.record(Metrics.ptmStage(k), startTime);
         }
 
         return peptidePTMPattern;
@@ -384,206 +371,227 @@ public class InferPTM {
         return idxVarModMap;
     }
 
-    private void try1PTMs(Map<Integer, Set<VarModParam>> idxVarModMap, double leftMassBound, double rightMassBound, String ptmFreePeptide, boolean isDecoy, double normalizedCrossCorr, int globalRank, Set<String> checkedPtmPattern, PeptidePTMPattern peptidePTMPattern, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, int precursorCharge, int localMaxMS2Charge) { // Sometimes, the precursor mass error may affects the digitized spectrum.
-        Integer[] idxArray = idxVarModMap.keySet().toArray(new Integer[0]);
-        Arrays.sort(idxArray);
-        for (int i = 0; i < idxArray.length - 1; ++i) {
-            for (VarModParam modEntry1 : idxVarModMap.get(idxArray[i])) {
-                if (modEntry1.mass <= rightMassBound && modEntry1.mass >= leftMassBound) {
-                    if (!checkedPtmPattern.contains(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000))) {
-                        checkedPtmPattern.add(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000));
-                        PositionDeltaMassMap positionDeltaMassMap = new PositionDeltaMassMap(ptmFreePeptide.length());
-                        positionDeltaMassMap.put(new Coordinate(idxArray[i], idxArray[i] + 1), modEntry1.mass);
-                        Peptide peptide = new Peptide(ptmFreePeptide, isDecoy, massTool, localMaxMS2Charge, normalizedCrossCorr, globalRank);
-                        peptide.setVarPTM(positionDeltaMassMap);
-                        double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
-                        if (score > 0) {
-                            peptide.setScore(score);
-                            peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMS2Charge, peptide.getIonMatrix(), ms2Tolerance));
-                            peptidePTMPattern.update(peptide);
-                        }
+    // Tries all combinations of k PTMs on k different sites. Sites are visited in ascending position order and the mods of a site in mass order, so that the mods that cannot reach [leftMassBound, rightMassBound] with any choice on the remaining sites are skipped by binary search. The surviving candidates are scored in the same order as the former nested loops (positions ascending, the mods of a site in their set iteration order).
+    private void tryKPTMs(int k, SiteTable siteTable, IonLadder ionLadder, double leftMassBound, double rightMassBound, String ptmFreePeptide, boolean isDecoy, double normalizedCrossCorr, int globalRank, PeptidePTMPattern peptidePTMPattern, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, int precursorCharge, int localMaxMS2Charge) {
+        List<int[]> candidateList = new ArrayList<>();
+        enumeratePTMs(k, 0, 0, 0, 0, new int[2 * k], new double[k], siteTable, leftMassBound, rightMassBound, candidateList);
+        if (candidateList.isEmpty()) {
+            return;
+        }
+        peptidePTMPattern.addTriedPatternNum(candidateList.size());
+
+        candidateList.sort((c1, c2) -> {
+            for (int i = 0; i < c1.length; ++i) {
+                if (c1[i] != c2[i]) {
+                    return Integer.compare(c1[i], c2[i]);
+                }
+            }
+            return 0;
+        });
+        for (int[] candidate : candidateList) {
+            evaluatedCandidateCounter.increment();
+            ionLadder.clearDeltas();
+            for (int d = 0; d < k; ++d) {
+                ionLadder.setDelta(siteTable.idxArray[candidate[2 * d]], siteTable.modArray[candidate[2 * d]][candidate[2 * d + 1]].roundedMass);
+            }
+            double[][] ionMatrix = ionLadder.build();
+            double score = massTool.buildVectorAndCalXCorr(ionMatrix, precursorCharge, expProcessedPL);
+            if (score > 0) {
+                int matchedPeakNum = Score.getMatchedIonNum(plMap, localMaxMS2Charge, ionMatrix, ms2Tolerance);
+                if (peptidePTMPattern.canUpdate(score, matchedPeakNum, k, normalizedCrossCorr, isDecoy)) { // only the patterns entering the top list become peptides.
+                    PositionDeltaMassMap positionDeltaMassMap = new PositionDeltaMassMap(ptmFreePeptide.length());
+                    for (int d = 0; d < k; ++d) {
+                        positionDeltaMassMap.put(siteTable.idxArray[candidate[2 * d]], siteTable.modArray[candidate[2 * d]][candidate[2 * d + 1]].mass);
                     }
+                    Peptide peptide = new Peptide(ptmFreePeptide, isDecoy, massTool, localMaxMS2Charge, normalizedCrossCorr, globalRank);
+                    peptide.setVarPTM(positionDeltaMassMap);
+                    peptide.setScore(score);
+                    peptide.setMatchedPeakNum(matchedPeakNum);
+                    peptidePTMPattern.update(peptide);
                 }
             }
         }
     }
 
-    private void try2PTMs(Map<Integer, Set<VarModParam>> idxVarModMap, double leftMassBound, double rightMassBound, String ptmFreePeptide, boolean isDecoy, double normalizedCrossCorr, int globalRank, Set<String> checkedPtmPattern, PeptidePTMPattern peptidePTMPattern, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, int precursorCharge, int localMaxMS2Charge) {
-        Integer[] idxArray = idxVarModMap.keySet().toArray(new Integer[0]);
-        Arrays.sort(idxArray);
-        for (int i = 0; i < idxArray.length - 1; ++i) {
-            for (VarModParam modEntry1 : idxVarModMap.get(idxArray[i])) {
-                for (int j = i + 1; j < idxArray.length; ++j) {
-                    for (VarModParam modEntry2 : idxVarModMap.get(idxArray[j])) {
-                        if (modEntry1.mass + modEntry2.mass <= rightMassBound && modEntry1.mass + modEntry2.mass >= leftMassBound) {
-                            if (!checkedPtmPattern.contains(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000))) {
-                                checkedPtmPattern.add(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000));
-                                PositionDeltaMassMap positionDeltaMassMap = new PositionDeltaMassMap(ptmFreePeptide.length());
-                                positionDeltaMassMap.put(new Coordinate(idxArray[i], idxArray[i] + 1), modEntry1.mass);
-                                positionDeltaMassMap.put(new Coordinate(idxArray[j], idxArray[j] + 1), modEntry2.mass);
-                                Peptide peptide = new Peptide(ptmFreePeptide, isDecoy, massTool, localMaxMS2Charge, normalizedCrossCorr, globalRank);
-                                peptide.setVarPTM(positionDeltaMassMap);
-                                double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
-                                if (score > 0) {
-                                    peptide.setScore(score);
-                                    peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMS2Charge, peptide.getIonMatrix(), ms2Tolerance));
-                                    peptidePTMPattern.update(peptide);
-                                }
-                            }
+    // candidate layout: (site 1, mod rank 1, site 2, mod rank 2, ...). The rules are those of the former try1PTMs ... try5PTMs: a single PTM is never put on the last site, and from three PTMs on, the d-th PTM needs a priority sum larger than d - 2 and must not cancel any earlier PTM.
+    private void enumeratePTMs(int k, int depth, int startSite, double massSum, int prioritySum, int[] candidate, double[] chosenMassArray, SiteTable siteTable, double leftMassBound, double rightMassBound, List<int[]> candidateList) {
+        int remainNum = k - depth - 1;
+        int endSite = k == 1 ? siteTable.siteNum - 1 : siteTable.siteNum - remainNum;
+        for (int site = startSite; site < endSite; ++site) {
+            double[] sortedMassArray = siteTable.sortedMassArray[site];
+            double lowerMass = leftMassBound - massSum - siteTable.maxRemainMassArray[site + 1][remainNum] - massSlack;
+            double upperMass = rightMassBound - massSum - siteTable.minRemainMassArray[site + 1][remainNum] + massSlack;
+            int from = lowerBound(sortedMassArray, lowerMass);
+            int to = Math.max(from, lowerBound(sortedMassArray, Math.nextUp(upperMass)));
+            prunedBranchCounter.add(sortedMassArray.length - (to - from));
+            for (int x = from; x < to; ++x) {
+                enumeratedNodeCounter.increment();
+                int rank = siteTable.sortedRankArray[site][x];
+                VarModParam modEntry = siteTable.modArray[site][rank];
+                if (k > 2 && depth > 0) {
+                    if (prioritySum + modEntry.priority <= depth - 1) {
+                        continue;
+                    }
+                    boolean cancelled = false;
+                    for (int d = 0; d < depth; ++d) {
+                        if (Math.abs(chosenMassArray[d] + modEntry.mass) < ptmMassTolerance) { // two self cancelled PTM masses are not allowed.
+                            cancelled = true;
+                            break;
                         }
                     }
+                    if (cancelled) {
+                        continue;
+                    }
+                }
+                candidate[2 * depth] = site;
+                candidate[2 * depth + 1] = rank;
+                chosenMassArray[depth] = modEntry.mass;
+                if (remainNum == 0) {
+                    double totalMass = chosenMassArray[0]; // the same summation order as before.
+                    for (int d = 1; d < k; ++d) {
+                        totalMass += chosenMassArray[d];
+                    }
+                    if (totalMass <= rightMassBound && totalMass >= leftMassBound) {
+                        candidateList.add(candidate.clone());
+                    }
+                } else {
+                    enumeratePTMs(k, depth + 1, site + 1, massSum + modEntry.mass, prioritySum + modEntry.priority, candidate, chosenMassArray, siteTable, leftMassBound, rightMassBound, candidateList);
                 }
             }
         }
     }
 
-    private void try3PTMs(Map<Integer, Set<VarModParam>> idxVarModMap, double leftMassBound, double rightMassBound, String ptmFreePeptide, boolean isDecoy, double normalizedCrossCorr, int globalRank, Set<String> checkedPtmPattern, PeptidePTMPattern peptidePTMPattern, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, int precursorCharge, int localMaxMS2Charge) {
-        Integer[] idxArray = idxVarModMap.keySet().toArray(new Integer[0]);
-        Arrays.sort(idxArray);
-        for (int i = 0; i < idxArray.length - 2; ++i) {
-            for (VarModParam modEntry1 : idxVarModMap.get(idxArray[i])) {
-                for (int j = i + 1; j < idxArray.length - 1; ++j) {
-                    for (VarModParam modEntry2 : idxVarModMap.get(idxArray[j])) {
-                        if (modEntry1.priority + modEntry2.priority > 0) {
-                            if (Math.abs(modEntry1.mass + modEntry2.mass) >= ptmMassTolerance) { // two self cancelled PTM masses are not allowed.
-                                for (int k = j + 1; k < idxArray.length; ++k) {
-                                    for (VarModParam modEntry3 : idxVarModMap.get(idxArray[k])) {
-                                        if (modEntry1.priority + modEntry2.priority + modEntry3.priority > 1) {
-                                            if (Math.abs(modEntry1.mass + modEntry3.mass) >= ptmMassTolerance && Math.abs(modEntry2.mass + modEntry3.mass) >= ptmMassTolerance) {
-                                                if (modEntry1.mass + modEntry2.mass + modEntry3.mass <= rightMassBound && modEntry1.mass + modEntry2.mass + modEntry3.mass >= leftMassBound) {
-                                                    if (!checkedPtmPattern.contains(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000) + "-" + idxArray[k] + "-" + Math.round(modEntry3.mass * 1000))) {
-                                                        checkedPtmPattern.add(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000) + "-" + idxArray[k] + "-" + Math.round(modEntry3.mass * 1000));
-                                                        PositionDeltaMassMap positionDeltaMassMap = new PositionDeltaMassMap(ptmFreePeptide.length());
-                                                        positionDeltaMassMap.put(new Coordinate(idxArray[i], idxArray[i] + 1), modEntry1.mass);
-                                                        positionDeltaMassMap.put(new Coordinate(idxArray[j], idxArray[j] + 1), modEntry2.mass);
-                                                        positionDeltaMassMap.put(new Coordinate(idxArray[k], idxArray[k] + 1), modEntry3.mass);
-                                                        Peptide peptide = new Peptide(ptmFreePeptide, isDecoy, massTool, localMaxMS2Charge, normalizedCrossCorr, globalRank);
-                                                        peptide.setVarPTM(positionDeltaMassMap);
-                                                        double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
-                                                        if (score > 0) {
-                                                            peptide.setScore(score);
-                                                            peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMS2Charge, peptide.getIonMatrix(), ms2Tolerance));
-                                                            peptidePTMPattern.update(peptide);
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+    private static int lowerBound(double[] array, double value) { // the first index whose value >= the given value.
+        int low = 0;
+        int high = array.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
         }
+        return low;
     }
 
-    private void try4PTMs(Map<Integer, Set<VarModParam>> idxVarModMap, double leftMassBound, double rightMassBound, String ptmFreePeptide, boolean isDecoy, double normalizedCrossCorr, int globalRank, Set<String> checkedPtmPattern, PeptidePTMPattern peptidePTMPattern, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, int precursorCharge, int localMaxMS2Charge) { // only allow one low priority PTM
-        Integer[] idxArray = idxVarModMap.keySet().toArray(new Integer[0]);
-        Arrays.sort(idxArray);
-        for (int i = 0; i < idxArray.length - 3; ++i) {
-            for (VarModParam modEntry1 : idxVarModMap.get(idxArray[i])) {
-                for (int j = i + 1; j < idxArray.length - 2; ++j) {
-                    for (VarModParam modEntry2 : idxVarModMap.get(idxArray[j])) {
-                        if (modEntry1.priority + modEntry2.priority > 0) {
-                            if (Math.abs(modEntry1.mass + modEntry2.mass) >= ptmMassTolerance) {
-                                for (int k = j + 1; k < idxArray.length - 1; ++k) {
-                                    for (VarModParam modEntry3 : idxVarModMap.get(idxArray[k])) {
-                                        if (modEntry1.priority + modEntry2.priority + modEntry3.priority > 1) {
-                                            if (Math.abs(modEntry1.mass + modEntry3.mass) >= ptmMassTolerance && Math.abs(modEntry2.mass + modEntry3.mass) >= ptmMassTolerance) {
-                                                for (int l = k + 1; l < idxArray.length; ++l) {
-                                                    for (VarModParam modEntry4 : idxVarModMap.get(idxArray[l])) {
-                                                        if (modEntry1.priority + modEntry2.priority + modEntry3.priority + modEntry4.priority > 2) {
-                                                            if (Math.abs(modEntry1.mass + modEntry4.mass) >= ptmMassTolerance && Math.abs(modEntry2.mass + modEntry4.mass) >= ptmMassTolerance && Math.abs(modEntry3.mass + modEntry4.mass) >= ptmMassTolerance) {
-                                                                if (modEntry1.mass + modEntry2.mass + modEntry3.mass + modEntry4.mass <= rightMassBound && modEntry1.mass + modEntry2.mass + modEntry3.mass + modEntry4.mass >= leftMassBound) {
-                                                                    if (!checkedPtmPattern.contains(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000) + "-" + idxArray[k] + "-" + Math.round(modEntry3.mass * 1000) + "-" + idxArray[l] + "-" + Math.round(modEntry4.mass * 1000))) {
-                                                                        checkedPtmPattern.add(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000) + "-" + idxArray[k] + "-" + Math.round(modEntry3.mass * 1000) + "-" + idxArray[l] + "-" + Math.round(modEntry4.mass * 1000));
-                                                                        PositionDeltaMassMap positionDeltaMassMap = new PositionDeltaMassMap(ptmFreePeptide.length());
-                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[i], idxArray[i] + 1), modEntry1.mass);
-                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[j], idxArray[j] + 1), modEntry2.mass);
-                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[k], idxArray[k] + 1), modEntry3.mass);
-                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[l], idxArray[l] + 1), modEntry4.mass);
-                                                                        Peptide peptide = new Peptide(ptmFreePeptide, isDecoy, massTool, localMaxMS2Charge, normalizedCrossCorr, globalRank);
-                                                                        peptide.setVarPTM(positionDeltaMassMap);
-                                                                        double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
-                                                                        if (score > 0) {
-                                                                            peptide.setScore(score);
-                                                                            peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMS2Charge, peptide.getIonMatrix(), ms2Tolerance));
-                                                                            peptidePTMPattern.update(peptide);
-                                                                        }
-                                                                    }
-                                                                }
-                                                            }
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
+    public long getEnumeratedNodeNum() {
+        return enumeratedNodeCounter.sum();
+    }
+
+    public long getPrunedBranchNum() {
+        return prunedBranchCounter.sum();
+    }
+
+    public long getEvaluatedCandidateNum() {
+        return evaluatedCandidateCounter.sum();
+    }
+
+    // The b/y ion ladder of a peptide with PTM masses at some positions. It follows the arithmetic of MassTool.buildIonArray on the modified sequence (e.g. "nPEM(15.995)TIDEc"), without formatting and parsing that sequence. The matrix is reused for every pattern of the peptide.
+    private class IonLadder {
+
+        private final double[] residueMassArray; // including n and c.
+        private final double[] deltaArray;
+        private final double[][] ionMatrix;
+        private final int maxCharge;
+
+        IonLadder(String ptmFreePeptide, int maxCharge) {
+            this.maxCharge = maxCharge;
+            residueMassArray = new double[ptmFreePeptide.length()];
+            for (int i = 0; i < residueMassArray.length; ++i) {
+                residueMassArray[i] = massTable.get(ptmFreePeptide.charAt(i));
+            }
+            deltaArray = new double[residueMassArray.length];
+            ionMatrix = new double[2 * maxCharge][residueMassArray.length - 2];
+        }
+
+        void clearDeltas() {
+            Arrays.fill(deltaArray, 0);
+        }
+
+        void setDelta(int idx, double delta) {
+            deltaArray[idx] = delta;
+        }
+
+        double[][] build() {
+            int length = residueMassArray.length;
+            for (int charge = 1; charge <= maxCharge; ++charge) {
+                double[] bIonArray = ionMatrix[2 * (charge - 1)];
+                double[] yIonArray = ionMatrix[2 * (charge - 1) + 1];
+                double bIonMass = residueMassArray[0] + deltaArray[0];
+                for (int i = 1; i < length - 1; ++i) {
+                    bIonMass += residueMassArray[i] + deltaArray[i];
+                    bIonArray[i - 1] = bIonMass / charge + MassTool.PROTON;
+                }
+                double yIonMass = residueMassArray[length - 1] + deltaArray[length - 1] + massTool.H2O;
+                for (int i = length - 2; i > 0; --i) {
+                    yIonMass += residueMassArray[i] + deltaArray[i];
+                    yIonArray[i - 1] = yIonMass / charge + MassTool.PROTON;
                 }
             }
+            return ionMatrix;
         }
     }
 
-    private void try5PTMs(Map<Integer, Set<VarModParam>> idxVarModMap, double leftMassBound, double rightMassBound, String ptmFreePeptide, boolean isDecoy, double normalizedCrossCorr, int globalRank, Set<String> checkedPtmPattern, PeptidePTMPattern peptidePTMPattern, SparseVector expProcessedPL, TreeMap<Double, Double> plMap, int precursorCharge, int localMaxMS2Charge) { // only allow one low priority PTM
-        Integer[] idxArray = idxVarModMap.keySet().toArray(new Integer[0]);
-        Arrays.sort(idxArray);
-        for (int i = 0; i < idxArray.length - 4; ++i) {
-            for (VarModParam modEntry1 : idxVarModMap.get(idxArray[i])) {
-                for (int j = i + 1; j < idxArray.length - 3; ++j) {
-                    for (VarModParam modEntry2 : idxVarModMap.get(idxArray[j])) {
-                        if (modEntry1.priority + modEntry2.priority > 0) {
-                            if (Math.abs(modEntry1.mass + modEntry2.mass) >= ptmMassTolerance) {
-                                for (int k = j + 1; k < idxArray.length - 2; ++k) {
-                                    for (VarModParam modEntry3 : idxVarModMap.get(idxArray[k])) {
-                                        if (modEntry1.priority + modEntry2.priority + modEntry3.priority > 1) {
-                                            if (Math.abs(modEntry1.mass + modEntry3.mass) >= ptmMassTolerance && Math.abs(modEntry2.mass + modEntry3.mass) >= ptmMassTolerance) {
-                                                for (int l = k + 1; l < idxArray.length - 1; ++l) {
-                                                    for (VarModParam modEntry4 : idxVarModMap.get(idxArray[l])) {
-                                                        if (modEntry1.priority + modEntry2.priority + modEntry3.priority + modEntry4.priority > 2) {
-                                                            if (Math.abs(modEntry1.mass + modEntry4.mass) >= ptmMassTolerance && Math.abs(modEntry2.mass + modEntry4.mass) >= ptmMassTolerance && Math.abs(modEntry3.mass + modEntry4.mass) >= ptmMassTolerance) {
-                                                                for (int m = l + 1; m < idxArray.length; ++m) {
-                                                                    for (VarModParam modEntry5 : idxVarModMap.get(idxArray[m])) {
-                                                                        if (modEntry1.priority + modEntry2.priority + modEntry3.priority + modEntry4.priority + modEntry5.priority > 3) {
-                                                                            if (Math.abs(modEntry1.mass + modEntry5.mass) >= ptmMassTolerance && Math.abs(modEntry2.mass + modEntry5.mass) >= ptmMassTolerance && Math.abs(modEntry3.mass + modEntry5.mass) >= ptmMassTolerance && Math.abs(modEntry4.mass + modEntry5.mass) >= ptmMassTolerance) {
-                                                                                if (modEntry1.mass + modEntry2.mass + modEntry3.mass + modEntry4.mass + modEntry5.mass <= rightMassBound && modEntry1.mass + modEntry2.mass + modEntry3.mass + modEntry4.mass + modEntry5.mass >= leftMassBound) {
-                                                                                    if (!checkedPtmPattern.contains(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000) + "-" + idxArray[k] + "-" + Math.round(modEntry3.mass * 1000) + "-" + idxArray[l] + "-" + Math.round(modEntry4.mass * 1000) + "-" + idxArray[m] + "-" + Math.round(modEntry5.mass * 1000))) {
-                                                                                        checkedPtmPattern.add(idxArray[i] + "-" + Math.round(modEntry1.mass * 1000) + "-" + idxArray[j] + "-" + Math.round(modEntry2.mass * 1000) + "-" + idxArray[k] + "-" + Math.round(modEntry3.mass * 1000) + "-" + idxArray[l] + "-" + Math.round(modEntry4.mass * 1000) + "-" + idxArray[m] + "-" + Math.round(modEntry5.mass * 1000));
-                                                                                        PositionDeltaMassMap positionDeltaMassMap = new PositionDeltaMassMap(ptmFreePeptide.length());
-                                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[i], idxArray[i] + 1), modEntry1.mass);
-                                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[j], idxArray[j] + 1), modEntry2.mass);
-                                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[k], idxArray[k] + 1), modEntry3.mass);
-                                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[l], idxArray[l] + 1), modEntry4.mass);
-                                                                                        positionDeltaMassMap.put(new Coordinate(idxArray[m], idxArray[m] + 1), modEntry5.mass);
-                                                                                        Peptide peptide = new Peptide(ptmFreePeptide, isDecoy, massTool, localMaxMS2Charge, normalizedCrossCorr, globalRank);
-                                                                                        peptide.setVarPTM(positionDeltaMassMap);
-                                                                                        double score = massTool.buildVectorAndCalXCorr(peptide.getIonMatrix(), precursorCharge, expProcessedPL);
-                                                                                        if (score > 0) {
-                                                                                            peptide.setScore(score);
-                                                                                            peptide.setMatchedPeakNum(Score.getMatchedIonNum(plMap, localMaxMS2Charge, peptide.getIonMatrix(), ms2Tolerance));
-                                                                                            peptidePTMPattern.update(peptide);
-                                                                                        }
-                                                                                    }
-                                                                                }
-                                                                            }
-                                                                        }
-                                                                    }
-                                                                }
-                                                            }
-                                                        }
-                                                    }
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+    private static class SiteTable { // the modifiable sites of a peptide in ascending position order.
+
+        final int siteNum;
+        final int[] idxArray;
+        final VarModParam[][] modArray; // in the set iteration order.
+        final double[][] sortedMassArray;
+        final int[][] sortedRankArray; // sortedRankArray[site][x] is the rank in modArray of the x-th lightest mod.
+        final double[][] minRemainMassArray; // [site][n]: the lightest total of n mods on n different sites from the site on.
+        final double[][] maxRemainMassArray;
+
+        SiteTable(Map<Integer, Set<VarModParam>> idxVarModMap) {
+            siteNum = idxVarModMap.size();
+            idxArray = new int[siteNum];
+            int i = 0;
+            for (int idx : idxVarModMap.keySet()) {
+                idxArray[i] = idx;
+                ++i;
+            }
+            Arrays.sort(idxArray);
+
+            modArray = new VarModParam[siteNum][];
+            sortedMassArray = new double[siteNum][];
+            sortedRankArray = new int[siteNum][];
+            double[] siteMinMassArray = new double[siteNum];
+            double[] siteMaxMassArray = new double[siteNum];
+            for (int site = 0; site < siteNum; ++site) {
+                VarModParam[] mods = idxVarModMap.get(idxArray[site]).toArray(new VarModParam[0]);
+                modArray[site] = mods;
+                Integer[] rankArray = new Integer[mods.length];
+                for (int rank = 0; rank < mods.length; ++rank) {
+                    rankArray[rank] = rank;
+                }
+                Arrays.sort(rankArray, Comparator.comparingDouble(rank -> mods[rank].mass));
+                sortedMassArray[site] = new double[mods.length];
+                sortedRankArray[site] = new int[mods.length];
+                for (int x = 0; x < mods.length; ++x) {
+                    sortedRankArray[site][x] = rankArray[x];
+                    sortedMassArray[site][x] = mods[rankArray[x]].mass;
+                    // VarModParam equality is its milli-mass and amino acid, and the mods of a site come from one set of one amino acid. So they never share a milli-mass and every enumerated pattern is distinct.
+                    assert x == 0 || Math.round(sortedMassArray[site][x] * 1000) != Math.round(sortedMassArray[site][x - 1] * 1000);
+                }
+                siteMinMassArray[site] = mods.length == 0 ? 0 : sortedMassArray[site][0];
+                siteMaxMassArray[site] = mods.length == 0 ? 0 : sortedMassArray[site][mods.length - 1];
+            }
+
+            minRemainMassArray = new double[siteNum + 1][maxPtmNum];
+            maxRemainMassArray = new double[siteNum + 1][maxPtmNum];
+            for (int site = 0; site <= siteNum; ++site) {
+                double[] minArray = Arrays.copyOfRange(siteMinMassArray, site, siteNum);
+                double[] maxArray = Arrays.copyOfRange(siteMaxMassArray, site, siteNum);
+                Arrays.sort(minArray);
+                Arrays.sort(maxArray);
+                for (int n = 1; n < maxPtmNum; ++n) {
+                    if (n <= minArray.length) {
+                        minRemainMassArray[site][n] = minRemainMassArray[site][n - 1] + minArray[n - 1];
+                        maxRemainMassArray[site][n] = maxRemainMassArray[site][n - 1] + maxArray[maxArray.length - n];
+                    } else {
+                        minRemainMassArray[site][n] = Double.MAX_VALUE;
+                        maxRemainMassArray[site][n] = -Double.MAX_VALUE;
                     }
                 }
             }
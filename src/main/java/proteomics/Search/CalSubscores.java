@@ -18,7 +18,7 @@ public class CalSubscores {
         // calculate A score
         if (peptide.hasVarPTM()) {
             Peptide[] tempArray = ptmPatterns.toArray(new Peptide[0]);
-            peptide.setaScore(String.valueOf(Score.calAScore(plMap, PreSpectra.topN, binomial, peptide.getVarPTMs(), peptide.getIonMatrix(), tempArray.length > 1 ? tempArray[1].getVarPTMs() : null, tempArray.length > 1 ? tempArray[1].getIonMatrix() : null, ms2Tolerance, peptide.length())));
+            peptide.setaScore(String.valueOf(Score.calAScore(plMap, PreSpectra.topN, binomial, peptide.getVarPTMs().toTreeMap(), peptide.getIonMatrix(), tempArray.length > 1 ? tempArray[1].getVarPTMs().toTreeMap() : null, tempArray.length > 1 ? tempArray[1].getIonMatrix() : null, ms2Tolerance, peptide.length())));
         }
     }
 }
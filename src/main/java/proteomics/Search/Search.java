@@ -1,6 +1,8 @@
 package proteomics.Search;
 
 import proteomics.Index.BuildIndex;
+import proteomics.Index.PeptideIndex;
+import proteomics.Metrics;
 import ProteomicsLibrary.MassTool;
 import ProteomicsLibrary.Types.*;
 import proteomics.Types.*;
@@ -10,14 +12,15 @@ import java.util.*;
 public class Search {
 
     private static final int rankNum = 5;
+    private static final double ptmFreeRangeSlack = 0.01;
+    private static final ThreadLocal<HitBuffer> hitBufferThreadLocal = ThreadLocal.withInitial(HitBuffer::new);
 
     private List<Peptide> ptmOnlyResult = new LinkedList<>();
     private List<Peptide> ptmFreeResult = new LinkedList<>();
 
-
+    // Searches one spectrum. The dot products are accumulated from the inverted segment index, so the cost scales with the segment hits in the mass window rather than with the window size. The results are the same as scoring every peptide in the window.
     public Search(BuildIndex buildIndex, double precursorMass, SparseVector scanCode, MassTool massTool, double ms1Tolerance, double leftInverseMs1Tolerance, double rightInverseMs1Tolerance, int ms1ToleranceUnit, double minPtmMass, double maxPtmMass, int localMaxMs2Charge) {
-        PriorityQueue<ResultEntry> ptmFreeQueue = new PriorityQueue<>(rankNum * 2);
-        PriorityQueue<ResultEntry> ptmOnlyQueue = new PriorityQueue<>(rankNum * 2);
+        long startTime = System.nanoTime();
         double scanNormSquare = scanCode.norm2square();
         double leftTol = ms1Tolerance;
         double rightTol = ms1Tolerance;
@@ -32,87 +35,118 @@ public class Search {
             return;
         }
 
-        Map<String, Peptide0> peptide0Map = buildIndex.getPeptide0Map();
-        TreeMap<Double, Set<String>> massPeptideMap = buildIndex.getMassPeptideMap();
-
-        NavigableMap<Double, Set<String>> subMassPeptideMap = massPeptideMap.subMap(leftMass, true, rightMass, true);
-
-        if (!subMassPeptideMap.isEmpty()) {
-            for (double mass : subMassPeptideMap.keySet()) {
-                for (String sequence : massPeptideMap.get(mass)) {
-                    Peptide0 peptide0 = peptide0Map.get(sequence);
-                    double score = 0;
-                    double temp1 = Math.sqrt(peptide0.code.norm2square() * scanNormSquare);
-                    if (temp1 > 1e-6) {
-                        score = peptide0.code.dot(scanCode) / temp1;
-                    }
-                    double deltaMass = mass - precursorMass; // caution: the order matters under ms1ToleranceUnit == 1 situation
-
-                    if (peptide0.isTarget) {
-                        if ((deltaMass <= rightTol) && (deltaMass >= -1 * leftTol)) {
-                            // PTM-free
-                            if (ptmFreeQueue.size() < rankNum) {
-                                ptmFreeQueue.add(new ResultEntry(score, sequence, false));
-                            } else {
-                                if (score > ptmFreeQueue.peek().score) {
-                                    ptmFreeQueue.poll();
-                                    ptmFreeQueue.add(new ResultEntry(score, sequence, false));
-                                }
-                            }
-                        }
-
-                        if ((deltaMass > rightTol) || (deltaMass < -1 * leftTol)) {
-                            // PTM-only
-                            if (ptmOnlyQueue.size() < rankNum) {
-                                ptmOnlyQueue.add(new ResultEntry(score, sequence, false));
-                            } else {
-                                if (score > ptmOnlyQueue.peek().score) {
-                                    ptmOnlyQueue.poll();
-                                    ptmOnlyQueue.add(new ResultEntry(score, sequence, false));
-                                }
-                            }
-                        }
-                    } else {
-                        if ((deltaMass <= rightTol) && (deltaMass >= -1 * leftTol)) {
-                            // PTM-free
-                            if (ptmFreeQueue.size() < rankNum) {
-                                ptmFreeQueue.add(new ResultEntry(score, sequence, true));
-                            } else {
-                                if (score > ptmFreeQueue.peek().score) {
-                                    ptmFreeQueue.poll();
-                                    ptmFreeQueue.add(new ResultEntry(score, sequence, true));
-                                }
-                            }
-                        }
-
-                        if ((deltaMass > rightTol) || (deltaMass < -1 * leftTol)) {
-                            // PTM-only
-                            if (ptmOnlyQueue.size() < rankNum) {
-                                ptmOnlyQueue.add(new ResultEntry(score, sequence, true));
-                            } else {
-                                if (score > ptmOnlyQueue.peek().score) {
-                                    ptmOnlyQueue.poll();
-                                    ptmOnlyQueue.add(new ResultEntry(score, sequence, true));
-                                }
-                            }
-                        }
-                    }
+        PeptideIndex peptideIndex = buildIndex.getPeptideIndex();
+        HitBuffer buffer = hitBufferThreadLocal.get();
+        TopK ptmFreeQueue = buffer.ptmFreeQueue;
+        TopK ptmOnlyQueue = buffer.ptmOnlyQueue;
+        ptmFreeQueue.clear();
+        ptmOnlyQueue.clear();
+        int fromOrdinal = peptideIndex.lowerBound(leftMass);
+        int toOrdinal = peptideIndex.upperBound(rightMass);
+        int hitNum = collectHits(peptideIndex, scanCode, fromOrdinal, toOrdinal, buffer);
+        int[] hitOrdinalArray = buffer.hitOrdinalArray;
+        double[] hitDotArray = buffer.hitDotArray;
+
+        // A peptide sharing no segment with the spectrum scores 0. It can only enter a queue that is not full yet, so it is only visited when that is possible. The PTM-free range is widened a bit and tested exactly below.
+        // the code norm of a peptide is the number of its segments, so the denominators of the cosine only take a few values. They are computed once per spectrum.
+        double[] normProductArray = buffer.normProductArray(peptideIndex.getMaxCodeNorm2square() + 1);
+        for (int n = 0; n < normProductArray.length; ++n) {
+            normProductArray[n] = Math.sqrt(n * scanNormSquare);
+        }
+
+        int ptmFreeFromOrdinal = peptideIndex.lowerBound(precursorMass - leftTol - ptmFreeRangeSlack);
+        int ptmFreeToOrdinal = peptideIndex.upperBound(precursorMass + rightTol + ptmFreeRangeSlack);
+        int h = 0;
+        int i = fromOrdinal;
+        while (i < toOrdinal) {
+            double dot = 0;
+            if (h < hitNum && hitOrdinalArray[h] == i) {
+                dot = hitDotArray[h];
+                ++h;
+            }
+
+            double score = 0;
+            double temp1 = normProductArray[peptideIndex.codeNorm2square(i)];
+            if (temp1 > 1e-6) {
+                score = dot / temp1;
+            }
+            double deltaMass = peptideIndex.getMass(i) - precursorMass; // caution: the order matters under ms1ToleranceUnit == 1 situation
+            if ((deltaMass <= rightTol) && (deltaMass >= -1 * leftTol)) {
+                ptmFreeQueue.offer(score, i); // PTM-free
+            } else {
+                ptmOnlyQueue.offer(score, i); // PTM-only
+            }
+
+            ++i;
+            if (ptmOnlyQueue.isFull() && (i < ptmFreeFromOrdinal || i >= ptmFreeToOrdinal)) {
+                int nextHitOrdinal = h < hitNum ? hitOrdinalArray[h] : toOrdinal;
+                if (i < ptmFreeFromOrdinal) {
+                    i = Math.min(nextHitOrdinal, ptmFreeFromOrdinal);
+                } else {
+                    i = nextHitOrdinal;
                 }
             }
         }
 
         if (!(ptmFreeQueue.isEmpty() && ptmOnlyQueue.isEmpty())) {
-            ptmFreeResult = convertResult(ptmFreeQueue, massTool, localMaxMs2Charge);
-            ptmOnlyResult = convertResult(ptmOnlyQueue, massTool, localMaxMs2Charge);
+            ptmFreeResult = convertResult(ptmFreeQueue, peptideIndex, massTool, localMaxMs2Charge);
+            ptmOnlyResult = convertResult(ptmOnlyQueue, peptideIndex, massTool, localMaxMs2Charge);
         }
+        Metrics.record(Metrics.Stage.SEARCH, startTime);
     }
 
-    private List<Peptide> convertResult(PriorityQueue<ResultEntry> inputQueue, MassTool massTool, int localMaxMs2Charge) {
-        List<Peptide> peptideList = new LinkedList<>();
+    // Collects the peptides in [fromOrdinal, toOrdinal) sharing at least one segment with the spectrum, in ascending ordinal order, together with their dot products. Each dot product is summed in ascending segment order, the same order as a merge over the peptide's code.
+    private static int collectHits(PeptideIndex peptideIndex, SparseVector scanCode, int fromOrdinal, int toOrdinal, HitBuffer buffer) {
+        int segmentNum = 0;
+        for (int segment : scanCode.idxSet()) {
+            buffer.ensureSegmentCapacity(segmentNum + 1);
+            buffer.segmentArray[segmentNum] = segment;
+            ++segmentNum;
+        }
+        Arrays.sort(buffer.segmentArray, 0, segmentNum);
+
+        int postingNum = 0;
+        for (int s = 0; s < segmentNum; ++s) {
+            int segment = buffer.segmentArray[s];
+            buffer.valueArray[s] = scanCode.get(segment);
+            int end = peptideIndex.postingEnd(segment);
+            for (int position = peptideIndex.postingLowerBound(segment, fromOrdinal); position < end; ++position) {
+                int ordinal = peptideIndex.getPosting(position);
+                if (ordinal >= toOrdinal) {
+                    break;
+                }
+                buffer.ensurePostingCapacity(postingNum + 1);
+                buffer.postingKeyArray[postingNum] = ((long) ordinal << 32) | s;
+                ++postingNum;
+            }
+        }
+        Arrays.sort(buffer.postingKeyArray, 0, postingNum);
+
+        int hitNum = 0;
+        int lastOrdinal = -1;
+        for (int p = 0; p < postingNum; ++p) {
+            long key = buffer.postingKeyArray[p];
+            int ordinal = (int) (key >>> 32);
+            double value = buffer.valueArray[(int) key];
+            if (ordinal == lastOrdinal) {
+                buffer.hitDotArray[hitNum - 1] += value;
+            } else {
+                buffer.hitOrdinalArray[hitNum] = ordinal;
+                buffer.hitDotArray[hitNum] = value;
+                ++hitNum;
+                lastOrdinal = ordinal;
+            }
+        }
+        return hitNum;
+    }
+
+    private static List<Peptide> convertResult(TopK inputQueue, PeptideIndex peptideIndex, MassTool massTool, int localMaxMs2Charge) {
+        List<Peptide> peptideList = new ArrayList<>(inputQueue.size());
         int globalRank = inputQueue.size();
         while (!inputQueue.isEmpty()) {
-            ResultEntry temp = inputQueue.poll();
-            peptideList.add(new Peptide(temp.peptide, temp.isDecoy(), massTool, localMaxMs2Charge, temp.score, globalRank));
+            int ordinal = inputQueue.peekOrdinal();
+            peptideList.add(new Peptide(peptideIndex.getSequence(ordinal), !peptideIndex.isTarget(ordinal), massTool, localMaxMs2Charge, inputQueue.peekScore(), globalRank));
+            inputQueue.poll();
             --globalRank;
         }
 
@@ -126,4 +160,40 @@ public class Search {
     public List<Peptide> getPTMFreeResult() {
         return ptmFreeResult;
     }
+
+    private static class HitBuffer { // per thread. It only grows.
+
+        final TopK ptmFreeQueue = new TopK(rankNum);
+        final TopK ptmOnlyQueue = new TopK(rankNum);
+        int[] segmentArray = new int[256];
+        double[] valueArray = new double[256];
+        long[] postingKeyArray = new long[4096];
+        int[] hitOrdinalArray = new int[4096];
+        double[] hitDotArray = new double[4096];
+
+        private double[] normProductArray = new double[0];
+
+        double[] normProductArray(int length) {
+            if (normProductArray.length != length) {
+                normProductArray = new double[length];
+            }
+            return normProductArray;
+        }
+
+        void ensureSegmentCapacity(int capacity) {
+            if (capacity > segmentArray.length) {
+                segmentArray = Arrays.copyOf(segmentArray, Math.max(capacity, segmentArray.length * 2));
+                valueArray = Arrays.copyOf(valueArray, segmentArray.length);
+            }
+        }
+
+        void ensurePostingCapacity(int capacity) {
+            if (capacity > postingKeyArray.length) {
+                int newLength = Math.max(capacity, postingKeyArray.length * 2);
+                postingKeyArray = Arrays.copyOf(postingKeyArray, newLength);
+                hitOrdinalArray = new int[newLength];
+                hitDotArray = new double[newLength];
+            }
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package proteomics.Search;
+
+// A fixed-capacity min-heap of (score, peptide ordinal). It uses the same sift rules as java.util.PriorityQueue, so equal scores are kept and polled in the same order as a PriorityQueue of the same entries.
+class TopK {
+
+    private final double[] scoreArray;
+    private final int[] ordinalArray;
+    private int size = 0;
+
+    TopK(int capacity) {
+        scoreArray = new double[capacity];
+        ordinalArray = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size == scoreArray.length;
+    }
+
+    double peekScore() {
+        return scoreArray[0];
+    }
+
+    int peekOrdinal() {
+        return ordinalArray[0];
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // Keeps the entry if there is room or it beats the current minimum, the same as "poll and add" on a full PriorityQueue.
+    void offer(double score, int ordinal) {
+        if (size < scoreArray.length) {
+            siftUp(size++, score, ordinal);
+        } else if (score > scoreArray[0]) {
+            poll();
+            siftUp(size++, score, ordinal);
+        }
+    }
+
+    void poll() {
+        int last = --size;
+        if (last > 0) {
+            siftDown(0, scoreArray[last], ordinalArray[last]);
+        }
+    }
+
+    private void siftUp(int k, double score, int ordinal) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (Double.compare(score, scoreArray[parent]) >= 0) {
+                break;
+            }
+            scoreArray[k] = scoreArray[parent];
+            ordinalArray[k] = ordinalArray[parent];
+            k = parent;
+        }
+        scoreArray[k] = score;
+        ordinalArray[k] = ordinal;
+    }
+
+    private void siftDown(int k, double score, int ordinal) {
+        int half = size >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            int right = child + 1;
+            if (right < size && Double.compare(scoreArray[child], scoreArray[right]) > 0) {
+                child = right;
+            }
+            if (Double.compare(score, scoreArray[child]) <= 0) {
+                break;
+            }
+            scoreArray[k] = scoreArray[child];
+            ordinalArray[k] = ordinalArray[child];
+            k = child;
+        }
+        scoreArray[k] = score;
+        ordinalArray[k] = ordinal;
+    }
+}
@@ -15,9 +15,14 @@ public class InferSegment {
     private static final int regionNum = 10;
     private static final int topNumInEachRegion = 20;
     private static final Pattern pattern = Pattern.compile("([nc][0-9a-i])?([A-Z#$].?)");
+    private static final int symbolBits = 21; // three symbols are packed in a long.
+    private static final long symbolMask = (1L << symbolBits) - 1;
+    private static final ThreadLocal<TagBuffer> tagBufferThreadLocal = ThreadLocal.withInitial(TagBuffer::new);
 
     private final double ms2Tolerance;
-    private TreeMap<Segment, Integer> aaVectorTemplate = new TreeMap<>();
+    private final int[] aaOrdinalArray = new int[128]; // -1 for residues out of the template. I and L share the ordinal of #.
+    private final int aaNum;
+    private final int[] segmentIdxArray; // indexed by (ordinal1 * aaNum + ordinal2) * aaNum + ordinal3. A 3-mer and its reverse share the index.
     private Map<Double, String> modifiedAAMap = new HashMap<>(35, 1);
     private final Double[] deltaMassArray;
     private Map<String, Double> modifiedAAMassMap = new HashMap<>(35, 1);
@@ -25,6 +30,16 @@ public class InferSegment {
     private double[] cTermPossibleMod = null;
     private MassTool massTool;
 
+    // symbol table for tag inference. Indexed by the symbol.
+    private final MassTable plainMassTable;
+    private final MassTable nTermMassTable;
+    private final MassTable cTermMassTable;
+    private final String[] symbolAaArray;
+    private final char[] symbolPtmFreeAaArray;
+    private final double[] symbolModArray;
+    private final double[] symbolTermModArray;
+    private final double maxStepMass;
+
     public InferSegment(MassTool massTool, Map<String, String> parameterMap, Map<Character, Double> fixModMap) throws Exception {
         this.massTool = massTool;
         this.ms2Tolerance = Double.valueOf(parameterMap.get("ms2_tolerance"));
@@ -42,20 +57,43 @@ public class InferSegment {
             }
         }
 
-        Character[] aaArray = massAaMap.values().toArray(new Character[0]);
+        // Ordinals follow the character order, so that comparing ordinal triples is the same as comparing the 3-mer strings.
+        char[] aaArray = new char[massAaMap.size()];
+        int idx = 0;
+        for (char aa : massAaMap.values()) {
+            aaArray[idx] = aa;
+            ++idx;
+        }
+        Arrays.sort(aaArray);
+        aaNum = aaArray.length;
+        Arrays.fill(aaOrdinalArray, -1);
+        for (int i = 0; i < aaNum; ++i) {
+            aaOrdinalArray[aaArray[i]] = i;
+        }
+        if (aaOrdinalArray['#'] >= 0) {
+            aaOrdinalArray['I'] = aaOrdinalArray['#'];
+            aaOrdinalArray['L'] = aaOrdinalArray['#'];
+        }
 
-        for (char aa1 : aaArray) {
-            for (char aa2 : aaArray) {
-                for (char aa3 : aaArray) {
-                    aaVectorTemplate.put(new Segment(String.format(Locale.US, "%c%c%c", aa1, aa2, aa3)), 0);
+        // A 3-mer is represented by the smaller one of itself and its reverse. The indices are the ranks of the representatives in the lexicographic order.
+        segmentIdxArray = new int[aaNum * aaNum * aaNum];
+        idx = 0;
+        for (int a = 0; a < aaNum; ++a) {
+            for (int b = 0; b < aaNum; ++b) {
+                for (int c = 0; c < aaNum; ++c) {
+                    if (a <= c) {
+                        segmentIdxArray[(a * aaNum + b) * aaNum + c] = idx;
+                        ++idx;
+                    }
                 }
             }
         }
-
-        int idx = 0;
-        for (Segment segment : aaVectorTemplate.keySet()) {
-            aaVectorTemplate.put(segment, idx);
-            ++idx;
+        for (int a = 0; a < aaNum; ++a) {
+            for (int b = 0; b < aaNum; ++b) {
+                for (int c = 0; c < a; ++c) {
+                    segmentIdxArray[(a * aaNum + b) * aaNum + c] = segmentIdxArray[(c * aaNum + b) * aaNum + a];
+                }
+            }
         }
 
         // generate a mass aa map containing modified amino acid
@@ -110,6 +148,51 @@ public class InferSegment {
             }
         }
         deltaMassArray = modifiedAAMap.keySet().toArray(new Double[0]);
+
+        int nTermModNum = nTermPossibleMod == null ? 0 : nTermPossibleMod.length;
+        int cTermModNum = cTermPossibleMod == null ? 0 : cTermPossibleMod.length;
+        int maxSymbolNum = deltaMassArray.length * (1 + nTermModNum + cTermModNum);
+        symbolPtmFreeAaArray = new char[maxSymbolNum];
+        symbolModArray = new double[maxSymbolNum];
+        symbolTermModArray = new double[maxSymbolNum];
+        Map<String, Integer> symbolIdxMap = new HashMap<>();
+        List<String> symbolList = new ArrayList<>(maxSymbolNum);
+        // The priority of an entry is its position in the original scan order: deltaMassArray first, then the terminal modifications.
+        plainMassTable = new MassTable(deltaMassArray.length);
+        nTermMassTable = nTermPossibleMod == null ? null : new MassTable(deltaMassArray.length * nTermModNum);
+        cTermMassTable = cTermPossibleMod == null ? null : new MassTable(deltaMassArray.length * cTermModNum);
+        double maxDeltaMass = 0;
+        for (int m = 0; m < deltaMassArray.length; ++m) {
+            double deltaMass = deltaMassArray[m];
+            maxDeltaMass = Math.max(maxDeltaMass, deltaMass);
+            String aa = modifiedAAMap.get(deltaMassArray[m]);
+            plainMassTable.add(deltaMass, 0, addSymbol(aa, symbolIdxMap, symbolList, null));
+            for (int i = 0; i < nTermModNum; ++i) {
+                nTermMassTable.add(deltaMass, nTermPossibleMod[i], addSymbol("n" + i + aa, symbolIdxMap, symbolList, nTermPossibleMod));
+            }
+            for (int i = 0; i < cTermModNum; ++i) {
+                cTermMassTable.add(deltaMass, cTermPossibleMod[i], addSymbol("c" + i + aa, symbolIdxMap, symbolList, cTermPossibleMod));
+            }
+        }
+        plainMassTable.sort();
+        if (nTermMassTable != null) {
+            nTermMassTable.sort();
+        }
+        if (cTermMassTable != null) {
+            cTermMassTable.sort();
+        }
+        if (symbolList.size() > symbolMask) {
+            throw new Exception(String.format(Locale.US, "There are too many amino acid and modification combinations (%d).", symbolList.size()));
+        }
+        symbolAaArray = symbolList.toArray(new String[0]);
+        double maxTermMod = 0;
+        for (int i = 0; i < nTermModNum; ++i) {
+            maxTermMod = Math.max(maxTermMod, nTermPossibleMod[i]);
+        }
+        for (int i = 0; i < cTermModNum; ++i) {
+            maxTermMod = Math.max(maxTermMod, cTermPossibleMod[i]);
+        }
+        maxStepMass = maxDeltaMass + maxTermMod;
     }
 
     public List<ThreeExpAA> inferSegmentLocationFromSpectrum(double precursorMass, TreeMap<Double, Double> plMap) throws Exception {
@@ -123,7 +206,7 @@ public class InferSegment {
         } else {
             for (ThreeExpAA expAaList : inputList) {
                 double totalIntensity = expAaList.getTotalIntensity();
-                int idx = aaVectorTemplate.get(new Segment(expAaList.getPtmFreeAAString()));
+                int idx = segmentIdx(expAaList.get(0).getPtmFreeAA(), expAaList.get(1).getPtmFreeAA(), expAaList.get(2).getPtmFreeAA());
                 double value = Math.max(totalIntensity, finalVector.get(idx));
                 finalVector.put(idx, value);
             }
@@ -131,189 +214,452 @@ public class InferSegment {
         }
     }
 
-    public SparseBooleanVector generateSegmentBooleanVector(String peptide) {
-        String normalizedPeptide = normalizeSequence(peptide);
-        Set<Integer> tempSet = new HashSet<>(peptide.length() + 1, 1);
-        for (int i = 0; i <= normalizedPeptide.length() - 3; ++i) {
-            tempSet.add(aaVectorTemplate.get(new Segment(normalizedPeptide.substring(i, i + 3))));
+    public int[] generateSegmentCode(String peptide) { // sorted and distinct segment indices.
+        int[] code = new int[Math.max(peptide.length() - 2, 0)];
+        for (int i = 0; i <= peptide.length() - 3; ++i) {
+            code[i] = segmentIdx(peptide.charAt(i), peptide.charAt(i + 1), peptide.charAt(i + 2));
         }
-        return new SparseBooleanVector(tempSet);
+        Arrays.sort(code);
+        int distinctNum = 0;
+        for (int i = 0; i < code.length; ++i) {
+            if (i == 0 || code[i] != code[i - 1]) {
+                code[distinctNum] = code[i];
+                ++distinctNum;
+            }
+        }
+        return Arrays.copyOf(code, distinctNum);
+    }
+
+    private int segmentIdx(char aa1, char aa2, char aa3) {
+        int ordinal1 = aaOrdinalArray[aa1];
+        int ordinal2 = aaOrdinalArray[aa2];
+        int ordinal3 = aaOrdinalArray[aa3];
+        if ((ordinal1 | ordinal2 | ordinal3) < 0) {
+            throw new NullPointerException(String.format(Locale.US, "There is no segment for %c%c%c.", aa1, aa2, aa3));
+        }
+        return segmentIdxArray[(ordinal1 * aaNum + ordinal2) * aaNum + ordinal3];
     }
 
     public static String normalizeSequence(String seq) {
         return seq.replaceAll("[IL]", "#");
     }
 
-    private List<ThreeExpAA> inferThreeAAFromSpectrum(TreeMap<Double, Double> plMap, double cTermMz) throws Exception {
-        Double[] mzArray = plMap.keySet().toArray(new Double[0]);
-        Double[] intensityArray = plMap.values().toArray(new Double[0]);
-        Set<ThreeExpAA> tempSet = new HashSet<>();
-        List<ThreeExpAA> outputList = new LinkedList<>();
-        for (int i = 0; i < mzArray.length - 3; ++i) {
-            double mz1 = mzArray[i];
-            double intensity1 = intensityArray[i];
-            for (int j = i + 1; j < mzArray.length - 2; ++j) {
-                double mz2 = mzArray[j];
-                double intensity2 = intensityArray[j];
-                String aa1 = inferAA(mz1, mz2, Math.abs(mz1 - MassTool.PROTON) <= ms2Tolerance, false);
-                if (aa1 != null) {
-                    Matcher matcher = pattern.matcher(aa1);
-                    char ptmFreeAA = '\0';
-                    double mod = 0;
-                    double nTermMod = 0;
-                    if (matcher.matches()) {
-                        if (modifiedAAMassMap.containsKey(matcher.group(2))) {
-                            mod = modifiedAAMassMap.get(matcher.group(2));
-                        }
-                        ptmFreeAA = matcher.group(2).charAt(0);
-                        if (matcher.group(1) != null) {
-                            if ((matcher.group(1).charAt(1) - '0' >= 0) && (matcher.group(1).charAt(1) - '0' < 10)) {
-                                nTermMod = nTermPossibleMod[matcher.group(1).charAt(1) - '0'];
-                            } else {
-                                throw new Exception("Something is wrong in inferring tags.");
-                            }
+    private List<ThreeExpAA> inferThreeAAFromSpectrum(TreeMap<Double, Double> plMap, double cTermMz) {
+        TagBuffer buffer = tagBufferThreadLocal.get();
+        int peakNum = plMap.size();
+        buffer.preparePeaks(peakNum);
+        double[] mzArray = buffer.mzArray;
+        double[] intensityArray = buffer.intensityArray;
+        int idx = 0;
+        for (Map.Entry<Double, Double> peak : plMap.entrySet()) {
+            mzArray[idx] = peak.getKey();
+            intensityArray[idx] = peak.getValue();
+            ++idx;
+        }
+
+        // Peak-gap adjacency. Three edge lists in CSR form: the first step of a tag (may carry an N-term mod), the middle step, and the last step (may carry a C-term mod).
+        double doubleTolerance = 2 * ms2Tolerance;
+        double maxGap = maxStepMass + doubleTolerance;
+        for (int a = 0; a < peakNum; ++a) {
+            buffer.firstEdgeStartArray[a] = buffer.firstEdgeNum;
+            buffer.middleEdgeStartArray[a] = buffer.middleEdgeNum;
+            buffer.lastEdgeStartArray[a] = buffer.lastEdgeNum;
+            boolean nTerm = Math.abs(mzArray[a] - MassTool.PROTON) <= ms2Tolerance;
+            for (int b = a + 1; b < peakNum; ++b) {
+                double mzDiff = mzArray[b] - mzArray[a];
+                if (mzDiff > maxGap) {
+                    break;
+                }
+                int symbol = plainMassTable.lookup(mzDiff, doubleTolerance);
+                if (symbol >= 0) {
+                    buffer.addFirstEdge(b, symbol);
+                    buffer.addMiddleEdge(b, symbol);
+                    buffer.addLastEdge(b, symbol);
+                } else {
+                    if (nTerm && (nTermMassTable != null)) {
+                        symbol = nTermMassTable.lookup(mzDiff, doubleTolerance);
+                        if (symbol >= 0) {
+                            buffer.addFirstEdge(b, symbol);
                         }
-                    } else {
-                        throw new NullPointerException(String.format(Locale.US, "Cannot find the PTM free amino acid for %s.", aa1));
                     }
-                    ExpAA expAa1 = new ExpAA(aa1, ptmFreeAA, mz1, mz2, intensity1, intensity2, -1, mod, nTermMod, 0);
-                    List<List<ExpAA>> tempAasList2 = new LinkedList<>();
-                    for (int k = j + 1; k < mzArray.length - 1; ++k) {
-                        double mz3 = mzArray[k];
-                        double intensity3 = intensityArray[k];
-                        String aa2 = inferAA(mz2, mz3, false, false);
-                        if (aa2 != null) {
-                            mod = 0;
-                            if (modifiedAAMassMap.containsKey(aa2)) {
-                                mod = modifiedAAMassMap.get(aa2);
-                            }
-                            ExpAA expAa2 = new ExpAA(aa2, aa2.charAt(0), mz2, mz3, intensity2, intensity3, -1, mod, 0, 0);
-                            List<ExpAA> tempAasList3 = new LinkedList<>();
-                            for (int l = k + 1; l < mzArray.length; ++l) {
-                                double mz4 = mzArray[l];
-                                double intensity4 = intensityArray[l];
-                                String aa3 = inferAA(mz3, mz4, false, Math.abs(mz4 - cTermMz) <= ms2Tolerance);
-                                if (aa3 != null) {
-                                    matcher = pattern.matcher(aa3);
-                                    ptmFreeAA = '\0';
-                                    mod = 0;
-                                    double cTermMod = 0;
-                                    if (matcher.matches()) {
-                                        if (modifiedAAMassMap.containsKey(matcher.group(2))) {
-                                            mod = modifiedAAMassMap.get(matcher.group(2));
-                                        }
-                                        ptmFreeAA = matcher.group(2).charAt(0);
-                                        if (matcher.group(1) != null) {
-                                            if ((matcher.group(1).charAt(1) - '0' >= 0) && (matcher.group(1).charAt(1) - '0' < 10)) {
-                                                cTermMod = cTermPossibleMod[matcher.group(1).charAt(1) - '0'];
-                                            } else {
-                                                throw new Exception("Something is wrong in inferring tags.");
-                                            }
-                                        }
-                                    } else {
-                                        throw new NullPointerException(String.format(Locale.US, "Cannot find the PTM free amino acid for %s.", aa3));
-                                    }
-                                    ExpAA expAa3 = new ExpAA(aa3, ptmFreeAA, mz3, mz4, intensity3, intensity4, -1, mod, 0, cTermMod);
-                                    tempAasList3.add(expAa3);
-                                }
-                            }
-                            for (ExpAA expAas3 : tempAasList3) {
-                                List<ExpAA> tempList2 = new LinkedList<>();
-                                tempList2.add(expAa2);
-                                tempList2.add(expAas3);
-                                tempAasList2.add(tempList2);
-                            }
+                    if ((cTermMassTable != null) && (Math.abs(mzArray[b] - cTermMz) <= ms2Tolerance)) {
+                        symbol = cTermMassTable.lookup(mzDiff, doubleTolerance);
+                        if (symbol >= 0) {
+                            buffer.addLastEdge(b, symbol);
                         }
                     }
-                    for (List<ExpAA> expAas2 : tempAasList2) {
-                        ThreeExpAA threeExpAa = new ThreeExpAA(expAa1, expAas2.get(0), expAas2.get(1));
-                        tempSet.add(threeExpAa);
+                }
+            }
+        }
+        buffer.firstEdgeStartArray[peakNum] = buffer.firstEdgeNum;
+        buffer.middleEdgeStartArray[peakNum] = buffer.middleEdgeNum;
+        buffer.lastEdgeStartArray[peakNum] = buffer.lastEdgeNum;
+
+        // Walk all 3-step paths. Every path is a distinct tag.
+        for (int i = 0; i < peakNum; ++i) {
+            for (int e1 = buffer.firstEdgeStartArray[i]; e1 < buffer.firstEdgeStartArray[i + 1]; ++e1) {
+                int j = buffer.firstEdgeNodeArray[e1];
+                for (int e2 = buffer.middleEdgeStartArray[j]; e2 < buffer.middleEdgeStartArray[j + 1]; ++e2) {
+                    int k = buffer.middleEdgeNodeArray[e2];
+                    for (int e3 = buffer.lastEdgeStartArray[k]; e3 < buffer.lastEdgeStartArray[k + 1]; ++e3) {
+                        int l = buffer.lastEdgeNodeArray[e3];
+                        buffer.addTag(i, j, k, l, packSymbols(buffer.firstEdgeSymbolArray[e1], buffer.middleEdgeSymbolArray[e2], buffer.lastEdgeSymbolArray[e3]), intensityArray[i] + intensityArray[j] + intensityArray[k] + intensityArray[l]);
                     }
                 }
             }
         }
 
-        // eliminate "overlapped" tags
-        ThreeExpAA[] tempArray = tempSet.toArray(new ThreeExpAA[0]);
-        List<ThreeExpAA> tempList = new LinkedList<>();
-        for (int i = 0; i < tempArray.length; ++i) {
-            boolean keep = true;
-            for (int j = 0; j < tempArray.length; ++j) {
-                if (i != j) {
-                    if (tempArray[i].approximateEquals(tempArray[j], 2 * ms2Tolerance)) {
-                        if (tempArray[i].getTotalIntensity() < tempArray[j].getTotalIntensity()) {
-                            keep = false;
-                            break;
-                        }
+        // eliminate "overlapped" tags: the same symbols with all heads within the tolerance, and a higher total intensity.
+        int tagNum = buffer.tagNum;
+        int[] tagPeakArray = buffer.tagPeakArray;
+        long[] tagSymbolArray = buffer.tagSymbolArray;
+        double[] tagIntensityArray = buffer.tagIntensityArray;
+        int[] survivorArray = buffer.survivorArray;
+        // Sort the tags by (symbols, first head). Only tags with the same symbols and a close first head can overlap, and they are neighbours in this order.
+        int[] tagOrderArray = buffer.tagOrderArray;
+        boolean[] droppedArray = buffer.droppedArray;
+        for (int a = 0; a < tagNum; ++a) {
+            tagOrderArray[a] = a;
+            droppedArray[a] = false;
+        }
+        sortTags(tagOrderArray, 0, tagNum - 1, tagSymbolArray, tagPeakArray, mzArray);
+        for (int p = 0; p < tagNum; ++p) {
+            int a = tagOrderArray[p];
+            double headMz = mzArray[tagPeakArray[4 * a]];
+            for (int q = p + 1; q < tagNum; ++q) {
+                int b = tagOrderArray[q];
+                if (tagSymbolArray[b] != tagSymbolArray[a] || mzArray[tagPeakArray[4 * b]] - headMz > doubleTolerance) {
+                    break;
+                }
+                if (headsWithin(mzArray, tagPeakArray, a, b, doubleTolerance)) {
+                    if (tagIntensityArray[a] < tagIntensityArray[b]) {
+                        droppedArray[a] = true;
+                    } else if (tagIntensityArray[b] < tagIntensityArray[a]) {
+                        droppedArray[b] = true;
                     }
                 }
             }
-            if (keep) {
-                tempList.add(tempArray[i]);
+        }
+        int survivorNum = 0;
+        for (int a = 0; a < tagNum; ++a) {
+            if (!droppedArray[a]) {
+                survivorArray[survivorNum] = a;
+                ++survivorNum;
             }
         }
 
-        if (tempList.size() > minTagNum) {
+        if (survivorNum > minTagNum) {
+            // only keep the top tags in each m/z region.
             double minMz = plMap.firstKey();
             double regionWindow = Math.ceil((plMap.lastKey() - minMz) / regionNum);
-            for (ThreeExpAA expAa : tempList) {
-                expAa.setRegionIdx((int) Math.floor((expAa.getHeadLocation() - minMz) / regionWindow));
+            int[] regionIdxArray = buffer.regionIdxArray;
+            int[] regionSizeArray = new int[regionNum];
+            for (int s = 0; s < survivorNum; ++s) {
+                int a = survivorArray[s];
+                regionIdxArray[s] = (int) Math.floor((mzArray[tagPeakArray[4 * a]] - minMz) / regionWindow);
+                ++regionSizeArray[regionIdxArray[s]];
             }
-            List<List<Double>> regionIntensityList = new ArrayList<>(20);
-            for (int i = 0; i < regionNum; ++i) {
-                regionIntensityList.add(new ArrayList<>(100));
+            double[][] regionIntensityArray = new double[regionNum][];
+            for (int r = 0; r < regionNum; ++r) {
+                regionIntensityArray[r] = new double[regionSizeArray[r]];
+                regionSizeArray[r] = 0;
             }
-            for (ThreeExpAA expAa : tempList) {
-                regionIntensityList.get(expAa.getRegionIdx()).add(expAa.getTotalIntensity());
+            for (int s = 0; s < survivorNum; ++s) {
+                int r = regionIdxArray[s];
+                regionIntensityArray[r][regionSizeArray[r]] = tagIntensityArray[survivorArray[s]];
+                ++regionSizeArray[r];
             }
             double[] intensityTArray = new double[regionNum];
-            for (int i = 0; i < regionNum; ++i) {
-                List<Double> intensityList = regionIntensityList.get(i);
-                Collections.sort(intensityList, Collections.reverseOrder());
-                if (intensityList.size() > topNumInEachRegion) {
-                    intensityTArray[i] = intensityList.get(topNumInEachRegion);
+            for (int r = 0; r < regionNum; ++r) {
+                if (regionIntensityArray[r].length > topNumInEachRegion) {
+                    Arrays.sort(regionIntensityArray[r]);
+                    intensityTArray[r] = regionIntensityArray[r][regionIntensityArray[r].length - 1 - topNumInEachRegion];
                 }
             }
-            for (ThreeExpAA expAa : tempList) {
-                if (expAa.getTotalIntensity() > intensityTArray[expAa.getRegionIdx()]) {
-                    outputList.add(expAa);
+            int keptNum = 0;
+            for (int s = 0; s < survivorNum; ++s) {
+                if (tagIntensityArray[survivorArray[s]] > intensityTArray[regionIdxArray[s]]) {
+                    survivorArray[keptNum] = survivorArray[s];
+                    ++keptNum;
                 }
             }
-            return outputList;
-        } else {
-            return tempList;
+            survivorNum = keptNum;
         }
+
+        // Only the survivors become objects.
+        List<ThreeExpAA> outputList = new ArrayList<>(survivorNum);
+        for (int s = 0; s < survivorNum; ++s) {
+            int a = survivorArray[s];
+            int i = tagPeakArray[4 * a];
+            int j = tagPeakArray[4 * a + 1];
+            int k = tagPeakArray[4 * a + 2];
+            int l = tagPeakArray[4 * a + 3];
+            long packedSymbols = tagSymbolArray[a];
+            int symbol1 = (int) (packedSymbols & symbolMask);
+            int symbol2 = (int) ((packedSymbols >>> symbolBits) & symbolMask);
+            int symbol3 = (int) (packedSymbols >>> (2 * symbolBits));
+            ExpAA expAa1 = new ExpAA(symbolAaArray[symbol1], symbolPtmFreeAaArray[symbol1], mzArray[i], mzArray[j], intensityArray[i], intensityArray[j], -1, symbolModArray[symbol1], symbolTermModArray[symbol1], 0);
+            ExpAA expAa2 = new ExpAA(symbolAaArray[symbol2], symbolPtmFreeAaArray[symbol2], mzArray[j], mzArray[k], intensityArray[j], intensityArray[k], -1, symbolModArray[symbol2], 0, 0);
+            ExpAA expAa3 = new ExpAA(symbolAaArray[symbol3], symbolPtmFreeAaArray[symbol3], mzArray[k], mzArray[l], intensityArray[k], intensityArray[l], -1, symbolModArray[symbol3], 0, symbolTermModArray[symbol3]);
+            outputList.add(new ThreeExpAA(expAa1, expAa2, expAa3));
+        }
+        return outputList;
     }
 
-    private String inferAA(double mz1, double mz2, boolean nTerm, boolean cTerm) {
-        double mzDiff = mz2 - mz1;
-        for (double mass : deltaMassArray) {
-            if (Math.abs(mzDiff - mass) <= 2 * ms2Tolerance) {
-                return modifiedAAMap.get(mass);
+    private static boolean headsWithin(double[] mzArray, int[] tagPeakArray, int a, int b, double tolerance) {
+        for (int x = 0; x < 3; ++x) {
+            if (Math.abs(mzArray[tagPeakArray[4 * a + x]] - mzArray[tagPeakArray[4 * b + x]]) > tolerance) {
+                return false;
             }
         }
+        return true;
+    }
 
-        if (nTerm && (nTermPossibleMod != null)) {
-            for (double mass : deltaMassArray) {
-                for (int i = 0; i < nTermPossibleMod.length; ++i) {
-                    if (Math.abs(mzDiff - mass - nTermPossibleMod[i]) <= 2 * ms2Tolerance) {
-                        return "n" + i + modifiedAAMap.get(mass);
+    private static void sortTags(int[] orderArray, int left, int right, long[] tagSymbolArray, int[] tagPeakArray, double[] mzArray) { // quick sort without boxing.
+        while (left < right) {
+            if (right - left < 16) {
+                for (int i = left + 1; i <= right; ++i) {
+                    int temp = orderArray[i];
+                    int j = i - 1;
+                    while (j >= left && compareTags(orderArray[j], temp, tagSymbolArray, tagPeakArray, mzArray) > 0) {
+                        orderArray[j + 1] = orderArray[j];
+                        --j;
                     }
+                    orderArray[j + 1] = temp;
                 }
+                return;
+            }
+            int pivot = orderArray[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (compareTags(orderArray[i], pivot, tagSymbolArray, tagPeakArray, mzArray) < 0) {
+                    ++i;
+                }
+                while (compareTags(orderArray[j], pivot, tagSymbolArray, tagPeakArray, mzArray) > 0) {
+                    --j;
+                }
+                if (i <= j) {
+                    int temp = orderArray[i];
+                    orderArray[i] = orderArray[j];
+                    orderArray[j] = temp;
+                    ++i;
+                    --j;
+                }
+            }
+            // recurse into the smaller part to bound the stack depth.
+            if (j - left < right - i) {
+                sortTags(orderArray, left, j, tagSymbolArray, tagPeakArray, mzArray);
+                left = i;
+            } else {
+                sortTags(orderArray, i, right, tagSymbolArray, tagPeakArray, mzArray);
+                right = j;
             }
         }
+    }
 
-        if (cTerm && (cTermPossibleMod != null)) {
-            for (double mass : deltaMassArray) {
-                for (int i = 0; i < cTermPossibleMod.length; ++i) {
-                    if (Math.abs(mzDiff - mass - cTermPossibleMod[i]) <= 2 * ms2Tolerance) {
-                        return "c" + i + modifiedAAMap.get(mass);
-                    }
+    private static int compareTags(int a, int b, long[] tagSymbolArray, int[] tagPeakArray, double[] mzArray) {
+        int result = Long.compare(tagSymbolArray[a], tagSymbolArray[b]);
+        if (result == 0) {
+            result = Double.compare(mzArray[tagPeakArray[4 * a]], mzArray[tagPeakArray[4 * b]]);
+        }
+        return result;
+    }
+
+    private static long packSymbols(int symbol1, int symbol2, int symbol3) {
+        return symbol1 | ((long) symbol2 << symbolBits) | ((long) symbol3 << (2 * symbolBits));
+    }
+
+    // A symbol is the string inferred from a peak gap, e.g. "M~" or "n0K". Its properties are parsed once here instead of per tag.
+    private int addSymbol(String aa, Map<String, Integer> symbolIdxMap, List<String> symbolList, double[] termPossibleMod) throws Exception {
+        Integer symbol = symbolIdxMap.get(aa);
+        if (symbol != null) {
+            return symbol;
+        }
+        Matcher matcher = pattern.matcher(aa);
+        if (!matcher.matches()) {
+            throw new NullPointerException(String.format(Locale.US, "Cannot find the PTM free amino acid for %s.", aa));
+        }
+        double termMod = 0;
+        if (matcher.group(1) != null) {
+            if ((matcher.group(1).charAt(1) - '0' >= 0) && (matcher.group(1).charAt(1) - '0' < 10)) {
+                termMod = termPossibleMod[matcher.group(1).charAt(1) - '0'];
+            } else {
+                throw new Exception("Something is wrong in inferring tags.");
+            }
+        }
+        symbol = symbolList.size();
+        symbolIdxMap.put(aa, symbol);
+        symbolList.add(aa);
+        symbolPtmFreeAaArray[symbol] = matcher.group(2).charAt(0);
+        symbolModArray[symbol] = modifiedAAMassMap.getOrDefault(matcher.group(2), 0d);
+        symbolTermModArray[symbol] = termMod;
+        return symbol;
+    }
+
+    private static class MassTable { // residue (+ terminal modification) masses sorted by the total mass.
+
+        private double[] massArray;
+        private double[] modArray;
+        private int[] priorityArray;
+        private int[] symbolArray;
+        private double[] totalMassArray;
+        private int size = 0;
+
+        MassTable(int capacity) {
+            massArray = new double[capacity];
+            modArray = new double[capacity];
+            priorityArray = new int[capacity];
+            symbolArray = new int[capacity];
+        }
+
+        void add(double mass, double mod, int symbol) {
+            massArray[size] = mass;
+            modArray[size] = mod;
+            priorityArray[size] = size;
+            symbolArray[size] = symbol;
+            ++size;
+        }
+
+        void sort() {
+            Integer[] orderArray = new Integer[size];
+            for (int i = 0; i < size; ++i) {
+                orderArray[i] = i;
+            }
+            Arrays.sort(orderArray, Comparator.comparingDouble((Integer i) -> massArray[i] + modArray[i]).thenComparingInt(i -> i));
+            double[] newMassArray = new double[size];
+            double[] newModArray = new double[size];
+            int[] newPriorityArray = new int[size];
+            int[] newSymbolArray = new int[size];
+            totalMassArray = new double[size];
+            for (int i = 0; i < size; ++i) {
+                int j = orderArray[i];
+                newMassArray[i] = massArray[j];
+                newModArray[i] = modArray[j];
+                newPriorityArray[i] = priorityArray[j];
+                newSymbolArray[i] = symbolArray[j];
+                totalMassArray[i] = massArray[j] + modArray[j];
+            }
+            massArray = newMassArray;
+            modArray = newModArray;
+            priorityArray = newPriorityArray;
+            symbolArray = newSymbolArray;
+        }
+
+        // Returns the symbol of the matched entry with the smallest priority, i.e. the one the original linear scan would have returned first. -1 if nothing matches.
+        int lookup(double mzDiff, double tolerance) {
+            // the candidate window is a bit wider than the tolerance so that rounding can never drop a match. The exact test is the original one.
+            double slack = 2 * tolerance;
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (totalMassArray[mid] < mzDiff - slack) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int bestPriority = Integer.MAX_VALUE;
+            int bestSymbol = -1;
+            for (int i = low; i < size && totalMassArray[i] <= mzDiff + slack; ++i) {
+                if (Math.abs(mzDiff - massArray[i] - modArray[i]) <= tolerance && priorityArray[i] < bestPriority) {
+                    bestPriority = priorityArray[i];
+                    bestSymbol = symbolArray[i];
                 }
             }
+            return bestSymbol;
+        }
+    }
+
+    private static class TagBuffer { // per thread. It only grows.
+
+        double[] mzArray = new double[0];
+        double[] intensityArray = new double[0];
+        int[] firstEdgeStartArray = new int[0];
+        int[] middleEdgeStartArray = new int[0];
+        int[] lastEdgeStartArray = new int[0];
+        int[] firstEdgeNodeArray = new int[1024];
+        int[] firstEdgeSymbolArray = new int[1024];
+        int firstEdgeNum;
+        int[] middleEdgeNodeArray = new int[1024];
+        int[] middleEdgeSymbolArray = new int[1024];
+        int middleEdgeNum;
+        int[] lastEdgeNodeArray = new int[1024];
+        int[] lastEdgeSymbolArray = new int[1024];
+        int lastEdgeNum;
+        int[] tagPeakArray = new int[4 * 1024];
+        long[] tagSymbolArray = new long[1024];
+        double[] tagIntensityArray = new double[1024];
+        int[] survivorArray = new int[1024];
+        int[] regionIdxArray = new int[1024];
+        int[] tagOrderArray = new int[1024];
+        boolean[] droppedArray = new boolean[1024];
+        int tagNum;
+
+        void preparePeaks(int peakNum) {
+            if (mzArray.length < peakNum) {
+                mzArray = new double[peakNum];
+                intensityArray = new double[peakNum];
+                firstEdgeStartArray = new int[peakNum + 1];
+                middleEdgeStartArray = new int[peakNum + 1];
+                lastEdgeStartArray = new int[peakNum + 1];
+            }
+            firstEdgeNum = 0;
+            middleEdgeNum = 0;
+            lastEdgeNum = 0;
+            tagNum = 0;
         }
 
-        return null;
+        void addFirstEdge(int node, int symbol) {
+            if (firstEdgeNum == firstEdgeNodeArray.length) {
+                firstEdgeNodeArray = Arrays.copyOf(firstEdgeNodeArray, firstEdgeNum * 2);
+                firstEdgeSymbolArray = Arrays.copyOf(firstEdgeSymbolArray, firstEdgeNum * 2);
+            }
+            firstEdgeNodeArray[firstEdgeNum] = node;
+            firstEdgeSymbolArray[firstEdgeNum] = symbol;
+            ++firstEdgeNum;
+        }
+
+        void addMiddleEdge(int node, int symbol) {
+            if (middleEdgeNum == middleEdgeNodeArray.length) {
+                middleEdgeNodeArray = Arrays.copyOf(middleEdgeNodeArray, middleEdgeNum * 2);
+                middleEdgeSymbolArray = Arrays.copyOf(middleEdgeSymbolArray, middleEdgeNum * 2);
+            }
+            middleEdgeNodeArray[middleEdgeNum] = node;
+            middleEdgeSymbolArray[middleEdgeNum] = symbol;
+            ++middleEdgeNum;
+        }
+
+        void addLastEdge(int node, int symbol) {
+            if (lastEdgeNum == lastEdgeNodeArray.length) {
+                lastEdgeNodeArray = Arrays.copyOf(lastEdgeNodeArray, lastEdgeNum * 2);
+                lastEdgeSymbolArray = Arrays.copyOf(lastEdgeSymbolArray, lastEdgeNum * 2);
+            }
+            lastEdgeNodeArray[lastEdgeNum] = node;
+            lastEdgeSymbolArray[lastEdgeNum] = symbol;
+            ++lastEdgeNum;
+        }
+
+        void addTag(int i, int j, int k, int l, long packedSymbols, double totalIntensity) {
+            if (tagNum == tagSymbolArray.length) {
+                int newLength = tagNum * 2;
+                tagPeakArray = Arrays.copyOf(tagPeakArray, 4 * newLength);
+                tagSymbolArray = Arrays.copyOf(tagSymbolArray, newLength);
+                tagIntensityArray = Arrays.copyOf(tagIntensityArray, newLength);
+                survivorArray = new int[newLength];
+                regionIdxArray = new int[newLength];
+                tagOrderArray = new int[newLength];
+                droppedArray = new boolean[newLength];
+            }
+            tagPeakArray[4 * tagNum] = i;
+            tagPeakArray[4 * tagNum + 1] = j;
+            tagPeakArray[4 * tagNum + 2] = k;
+            tagPeakArray[4 * tagNum + 3] = l;
+            tagSymbolArray[tagNum] = packedSymbols;
+            tagIntensityArray[tagNum] = totalIntensity;
+            ++tagNum;
+        }
     }
 
     private TreeMap<Double, Double> addVirtualPeaks(double precursorMass, TreeMap<Double, Double> plMap) {
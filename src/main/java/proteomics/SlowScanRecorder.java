@@ -0,0 +1,151 @@
+package proteomics;
+
+import org.slf4j.Logger;
+import proteomics.Types.ScanMeta;
+
+import java.io.*;
+import java.util.*;
+
+// Keeps the slowest scans of a search in a bounded min-heap. They are written with their preprocessed peak lists so that SlowScanReplay can search them again.
+public class SlowScanRecorder {
+
+    private final int capacity;
+    private final PriorityQueue<Scan> scanQueue; // the fastest kept scan on the top.
+
+    public SlowScanRecorder(int capacity) {
+        this.capacity = capacity;
+        scanQueue = new PriorityQueue<>(capacity, Comparator.comparingLong((Scan scan) -> scan.elapsedTime));
+    }
+
+    public synchronized void offer(Scan scan) {
+        if (scanQueue.size() < capacity) {
+            scanQueue.add(scan);
+        } else if (scan.elapsedTime > scanQueue.peek().elapsedTime) {
+            scanQueue.poll();
+            scanQueue.add(scan);
+        }
+    }
+
+    // the slowest first.
+    public synchronized List<Scan> getScanList() {
+        List<Scan> scanList = new ArrayList<>(scanQueue);
+        scanList.sort(Comparator.comparingLong((Scan scan) -> scan.elapsedTime).reversed());
+        return scanList;
+    }
+
+    public void logSummary(Logger logger) {
+        for (Scan scan : getScanList()) {
+            logger.info(String.format(Locale.US, "Slow scan %d: %.1f ms searching (%.1f ms reading and %.1f ms preprocessing before), %d peaks, %d tags, %d candidates, %d PTM patterns.", scan.scanMeta.scanNum, scan.elapsedTime * 1e-6, scan.readTime * 1e-6, scan.preSpectrumTime * 1e-6, scan.plMap.size(), scan.tagNum, scan.candidateNum, scan.ptmPatternNum));
+        }
+    }
+
+    public void write(String path) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path))) {
+            writer.write("# The slowest scans of a PIPI search with their preprocessed peak lists. Search them again with: java -cp PIPI.jar proteomics.SlowScanReplay <parameter_file> <this_file>\n");
+            for (Scan scan : getScanList()) {
+                ScanMeta scanMeta = scan.scanMeta;
+                writer.write("BEGIN SCAN\n");
+                writer.write("SCAN_NUM=" + scanMeta.scanNum + "\n");
+                writer.write("SCAN_ID=" + scanMeta.scanId + "\n");
+                writer.write("SCAN_IDX=" + scanMeta.scanIdx + "\n");
+                writer.write("PRECURSOR_CHARGE=" + scanMeta.precursorCharge + "\n");
+                writer.write("PRECURSOR_MASS=" + scanMeta.precursorMass + "\n");
+                writer.write("MGF_TITLE=" + scanMeta.mgfTitle + "\n");
+                writer.write("ISOTOPE_CORRECTION=" + scanMeta.isotopeCorrectionNum + "\n");
+                writer.write("MS1_PEARSON_CORRELATION_COEFFICIENT=" + scanMeta.ms1PearsonCorrelationCoefficient + "\n");
+                writer.write("READ_NS=" + scan.readTime + "\n");
+                writer.write("PRE_SPECTRUM_NS=" + scan.preSpectrumTime + "\n");
+                writer.write("ELAPSED_NS=" + scan.elapsedTime + "\n");
+                writer.write("TAG_NUM=" + scan.tagNum + "\n");
+                writer.write("CANDIDATE_NUM=" + scan.candidateNum + "\n");
+                writer.write("PTM_PATTERN_NUM=" + scan.ptmPatternNum + "\n");
+                for (Map.Entry<Double, Double> peak : scan.plMap.entrySet()) { // full precision so that the replay sees the same peak list.
+                    writer.write(peak.getKey() + " " + peak.getValue() + "\n");
+                }
+                writer.write("END SCAN\n");
+            }
+        }
+    }
+
+    public static List<Scan> read(String path) throws IOException {
+        List<Scan> scanList = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            Map<String, String> fieldMap = new HashMap<>();
+            TreeMap<Double, Double> plMap = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.contentEquals("BEGIN SCAN")) {
+                    fieldMap.clear();
+                    plMap = new TreeMap<>();
+                } else if (plMap == null) {
+                    throw new IOException(String.format(Locale.US, "%s: \"%s\" is outside of a scan.", path, line));
+                } else if (line.contentEquals("END SCAN")) {
+                    ScanMeta scanMeta = new ScanMeta(Integer.valueOf(fieldMap.get("SCAN_NUM")), fieldMap.get("SCAN_ID"), Integer.valueOf(fieldMap.get("SCAN_IDX")), Integer.valueOf(fieldMap.get("PRECURSOR_CHARGE")), Double.valueOf(fieldMap.get("PRECURSOR_MASS")), fieldMap.get("MGF_TITLE"), Integer.valueOf(fieldMap.get("ISOTOPE_CORRECTION")), Double.valueOf(fieldMap.get("MS1_PEARSON_CORRELATION_COEFFICIENT")));
+                    Scan scan = new Scan(scanMeta, plMap);
+                    scan.readTime = Long.valueOf(fieldMap.getOrDefault("READ_NS", "0"));
+                    scan.preSpectrumTime = Long.valueOf(fieldMap.getOrDefault("PRE_SPECTRUM_NS", "0"));
+                    scan.elapsedTime = Long.valueOf(fieldMap.get("ELAPSED_NS"));
+                    scan.tagNum = Integer.valueOf(fieldMap.get("TAG_NUM"));
+                    scan.candidateNum = Integer.valueOf(fieldMap.get("CANDIDATE_NUM"));
+                    scan.ptmPatternNum = Long.valueOf(fieldMap.get("PTM_PATTERN_NUM"));
+                    scanList.add(scan);
+                    plMap = null;
+                } else if (line.indexOf('=') > 0) {
+                    int idx = line.indexOf('=');
+                    fieldMap.put(line.substring(0, idx), line.substring(idx + 1));
+                } else {
+                    String[] parts = line.split("\\s+");
+                    plMap.put(Double.valueOf(parts[0]), Double.valueOf(parts[1]));
+                }
+            }
+        }
+        return scanList;
+    }
+
+    // The profile of a scan in one search. The times and counts are filled while the scan goes through PIPIWrap.
+    public static class Scan {
+
+        public final ScanMeta scanMeta;
+        public final TreeMap<Double, Double> plMap; // preprocessed
+
+        long readTime = 0; // ns, reading the peak list from the spectrum store.
+        long preSpectrumTime = 0; // ns, preprocessing the peak list.
+        long elapsedTime = 0; // ns, from coding to scoring. The scans are ranked by it, and SlowScanReplay measures the same steps.
+        int tagNum = 0;
+        int candidateNum = 0;
+        long ptmPatternNum = 0;
+
+        public Scan(ScanMeta scanMeta, TreeMap<Double, Double> plMap) {
+            this.scanMeta = scanMeta;
+            this.plMap = plMap;
+        }
+
+        public long getReadTime() {
+            return readTime;
+        }
+
+        public long getPreSpectrumTime() {
+            return preSpectrumTime;
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        public int getTagNum() {
+            return tagNum;
+        }
+
+        public int getCandidateNum() {
+            return candidateNum;
+        }
+
+        public long getPtmPatternNum() {
+            return ptmPatternNum;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package proteomics;
+
+import ProteomicsLibrary.Binomial;
+import ProteomicsLibrary.MassTool;
+import ProteomicsLibrary.PrepareSpectrum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proteomics.Index.BuildIndex;
+import proteomics.PTM.InferPTM;
+import proteomics.Parameter.Parameter;
+
+import java.util.*;
+
+// Searches the scans written by SlowScanRecorder again, one at a time in one thread, so that a pathological scan can be profiled without the rest of the data set.
+public class SlowScanReplay {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowScanReplay.class);
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.print("PIPI version " + PIPI.versionStr + "\r\n"
+                    + "Searches the slowest scans of an earlier search again.\r\n"
+                    + "Usage: java -cp /path/to/PIPI.jar proteomics.SlowScanReplay <parameter_file> <slow_scan_file>\r\n"
+                    + "\t<parameter_file>: the parameter file of the earlier search.\r\n"
+                    + "\t<slow_scan_file>: the .pipi.slow_scans.txt file written by the earlier search (slow_scan_num > 0).\r\n");
+            System.exit(1);
+        }
+
+        try {
+            new SlowScanReplay(args[0].trim(), args[1].trim());
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            logger.error(ex.toString());
+        }
+    }
+
+    private SlowScanReplay(String parameterPath, String slowScanPath) throws Exception {
+        Map<String, String> parameterMap = new Parameter(parameterPath).returnParameterMap();
+        double ms2Tolerance = Double.valueOf(parameterMap.get("ms2_tolerance"));
+        double ms1Tolerance = Double.valueOf(parameterMap.get("ms1_tolerance"));
+        double leftInverseMs1Tolerance = 1 / (1 + ms1Tolerance * 1e-6);
+        double rightInverseMs1Tolerance = 1 / (1 - ms1Tolerance * 1e-6);
+        int ms1ToleranceUnit = Integer.valueOf(parameterMap.get("ms1_tolerance_unit"));
+        String labelling = "N14";
+        if (parameterMap.get("15N").trim().contentEquals("1")) {
+            labelling = "N15";
+        }
+
+        List<SlowScanRecorder.Scan> recordedScanList = SlowScanRecorder.read(slowScanPath);
+        logger.info("Read {} scans from {}.", recordedScanList.size(), slowScanPath);
+
+        logger.info("Indexing protein database...");
+        BuildIndex buildIndex = new BuildIndex(parameterMap, labelling, true, parameterMap.get("add_decoy").contentEquals("1"), parameterMap.get("add_contaminant").contentEquals("1"));
+        MassTool massTool = buildIndex.returnMassTool();
+        InferPTM inferPTM = buildIndex.getInferPTM();
+        PrepareSpectrum preSpectrum = new PrepareSpectrum(massTool);
+        Binomial binomial = new Binomial(Integer.valueOf(parameterMap.get("max_peptide_length")) * 2);
+
+        // The peak lists are already preprocessed, so only search() is used.
+        PIPIWrap pipiWrap = new PIPIWrap(buildIndex, massTool, ms1Tolerance, leftInverseMs1Tolerance, rightInverseMs1Tolerance, ms1ToleranceUnit, ms2Tolerance, inferPTM.getMinPtmMass(), inferPTM.getMaxPtmMass(), inferPTM, preSpectrum, binomial);
+
+        // Both the recorded time and the replayed time cover coding, searching and scoring. Reading and preprocessing the peak list are not part of them.
+        logger.info("Searching...");
+        for (SlowScanRecorder.Scan recordedScan : recordedScanList) {
+            SlowScanRecorder.Scan scan = new SlowScanRecorder.Scan(recordedScan.scanMeta, recordedScan.plMap);
+            List<PIPIWrap.Entry> entryList = pipiWrap.search(Collections.singletonList(scan));
+            String psm = entryList.isEmpty() ? "no PSM" : String.format(Locale.US, "%s with score %.4f", entryList.get(0).peptide, entryList.get(0).score);
+            logger.info(String.format(Locale.US, "Scan %d: %.1f ms (recorded %.1f ms), %d peaks, %d tags, %d candidates, %d PTM patterns, %s.", scan.scanMeta.scanNum, scan.getElapsedTime() * 1e-6, recordedScan.getElapsedTime() * 1e-6, scan.plMap.size(), scan.getTagNum(), scan.getCandidateNum(), scan.getPtmPatternNum(), psm));
+        }
+
+        Metrics.logSummary(logger, Metrics.merge());
+    }
+}
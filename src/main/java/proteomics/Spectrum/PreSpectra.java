@@ -3,6 +3,8 @@ package proteomics.Spectrum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import proteomics.PIPI;
+import proteomics.Store.ResultStore;
+import proteomics.Types.ScanMeta;
 import ProteomicsLibrary.MassTool;
 import ProteomicsLibrary.IsotopeDistribution;
 import static ProteomicsLibrary.Utilities.*;
@@ -10,10 +12,6 @@ import uk.ac.ebi.pride.tools.jmzreader.*;
 import uk.ac.ebi.pride.tools.jmzreader.model.*;
 import uk.ac.ebi.pride.tools.mgf_parser.model.Ms2Query;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.Statement;
 import java.util.*;
 
 public class PreSpectra {
@@ -25,20 +23,9 @@ public class PreSpectra {
 
     private int usefulSpectraNum = 0;
 
-    public PreSpectra(JMzReader spectraParser, double ms1Tolerance, int ms1ToleranceUnit, MassTool massTool, String ext, Set<Integer> msLevelSet, String sqlPath) throws Exception {
+    public PreSpectra(JMzReader spectraParser, double ms1Tolerance, int ms1ToleranceUnit, MassTool massTool, String ext, Set<Integer> msLevelSet, ResultStore resultStore, SpectrumStore spectrumStore) throws Exception {
         isotopeDistribution = new IsotopeDistribution(massTool.getElementTable(), 0, massTool.getLabelling());
 
-        // prepare SQL database
-        Connection sqlConnection = DriverManager.getConnection(sqlPath);
-        Statement sqlStatement = sqlConnection.createStatement();
-        sqlStatement.executeUpdate("PRAGMA journal_mode=WAL");
-        sqlStatement.executeUpdate("DROP TABLE IF EXISTS spectraTable");
-        sqlStatement.executeUpdate("CREATE TABLE spectraTable (scanNum INTEGER NOT NULL, scanId TEXT PRIMARY KEY, precursorCharge INTEGER NOT NULL, precursorMass REAL NOT NULL, mgfTitle TEXT NOT NULL, isotopeCorrectionNum INTEGER NOT NULL, ms1PearsonCorrelationCoefficient REAL NOT NULL, labelling TEXT, peptide TEXT, theoMass REAL, isDecoy INTEGER, globalRank INTEGER, normalizedCorrelationCoefficient REAL, score REAL, deltaLCn REAL, deltaCn REAL, matchedPeakNum INTEGER, ionFrac REAL, matchedHighestIntensityFrac REAL, explainedAaFrac REAL, otherPtmPatterns TEXT, aScore TEXT)");
-        sqlStatement.close();
-
-        PreparedStatement sqlPrepareStatement = sqlConnection.prepareStatement("INSERT INTO spectraTable (scanNum, scanId, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient) VALUES (?, ?, ?, ?, ?, ?, ?)");
-        sqlConnection.setAutoCommit(false);
-
         Iterator<Spectrum> spectrumIterator = spectraParser.getSpectrumIterator();
         String parentId = null;
         while (spectrumIterator.hasNext()) {
@@ -118,23 +105,17 @@ public class PreSpectra {
                     }
                 }
 
-                sqlPrepareStatement.setInt(1, scanNum);
-                sqlPrepareStatement.setString(2, spectrum.getId());
-                sqlPrepareStatement.setInt(3, precursorCharge);
-                sqlPrepareStatement.setDouble(4, precursorMass);
-                sqlPrepareStatement.setString(5, mgfTitle);
-                sqlPrepareStatement.setInt(6, isotopeCorrectionNum);
-                sqlPrepareStatement.setDouble(7, pearsonCorrelationCoefficient);
-                sqlPrepareStatement.executeUpdate();
+                // keep the peak list so that the search threads don't need to go back to the spectra parser.
+                int scanIdx = spectrumStore.add(spectrum.getPeakList());
+
+                resultStore.addScan(new ScanMeta(scanNum, spectrum.getId(), scanIdx, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, pearsonCorrelationCoefficient));
                 ++usefulSpectraNum;
             } catch (RuntimeException ex) {
                 logger.error(ex.toString());
             }
         }
-        sqlConnection.commit();
-        sqlConnection.setAutoCommit(true);
-        sqlPrepareStatement.close();
-        sqlConnection.close();
+        resultStore.finishScans();
+        spectrumStore.finish();
         logger.info("Useful MS/MS spectra number: {}.", usefulSpectraNum);
     }
 
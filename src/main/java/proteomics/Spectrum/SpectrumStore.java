@@ -0,0 +1,107 @@
+package proteomics.Spectrum;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+public class SpectrumStore {
+
+    private static final int maxSegmentSize = 1 << 30; // A MappedByteBuffer is indexed by int. Split the file into segments so that it can be larger than 2 GB.
+
+    private final File file;
+    private DataOutputStream writer;
+    private long filePosition = 0;
+    private long segmentStart = 0;
+    private List<Long> segmentStartList = new ArrayList<>();
+    private MappedByteBuffer[] segments;
+
+    // indexed by scanIdx
+    private int[] segmentIdxArray = new int[1024];
+    private int[] offsetArray = new int[1024];
+    private int[] peakNumArray = new int[1024];
+    private int spectrumNum = 0;
+
+    public SpectrumStore(String path) throws IOException {
+        file = new File(path);
+        writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+        segmentStartList.add(0L);
+    }
+
+    public int add(Map<Double, Double> peakList) throws IOException {
+        if (writer == null) {
+            throw new IllegalStateException("The spectrum store has been finished.");
+        }
+
+        int peakNum = peakList.size();
+        long size = 16L * peakNum; // m/z and intensity
+        if (filePosition + size - segmentStart > maxSegmentSize) {
+            segmentStart = filePosition;
+            segmentStartList.add(segmentStart);
+        }
+
+        if (spectrumNum == segmentIdxArray.length) {
+            int newLength = spectrumNum * 2;
+            segmentIdxArray = Arrays.copyOf(segmentIdxArray, newLength);
+            offsetArray = Arrays.copyOf(offsetArray, newLength);
+            peakNumArray = Arrays.copyOf(peakNumArray, newLength);
+        }
+        segmentIdxArray[spectrumNum] = segmentStartList.size() - 1;
+        offsetArray[spectrumNum] = (int) (filePosition - segmentStart);
+        peakNumArray[spectrumNum] = peakNum;
+
+        // all m/z values first, then all intensities in the same order.
+        double[] intensityArray = new double[peakNum];
+        int i = 0;
+        for (Map.Entry<Double, Double> peak : peakList.entrySet()) {
+            writer.writeDouble(peak.getKey());
+            intensityArray[i] = peak.getValue();
+            ++i;
+        }
+        for (double intensity : intensityArray) {
+            writer.writeDouble(intensity);
+        }
+        filePosition += size;
+
+        return spectrumNum++;
+    }
+
+    public void finish() throws IOException {
+        writer.close();
+        writer = null;
+        segments = new MappedByteBuffer[segmentStartList.size()];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            for (int i = 0; i < segments.length; ++i) {
+                long start = segmentStartList.get(i);
+                long end = i + 1 < segments.length ? segmentStartList.get(i + 1) : filePosition;
+                segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start); // the mapping stays valid after the channel is closed.
+            }
+        }
+    }
+
+    // Drops the mappings so that the file can be deleted. A mapping is only released when its buffer is garbage collected, which may be later on Windows.
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        segments = null;
+    }
+
+    public TreeMap<Double, Double> getPeakList(int scanIdx) { // thread-safe: only absolute reads are used.
+        MappedByteBuffer segment = segments[segmentIdxArray[scanIdx]];
+        int offset = offsetArray[scanIdx];
+        int peakNum = peakNumArray[scanIdx];
+        int intensityOffset = offset + 8 * peakNum;
+        TreeMap<Double, Double> peakList = new TreeMap<>();
+        for (int i = 0; i < peakNum; ++i) {
+            peakList.put(segment.getDouble(offset + 8 * i), segment.getDouble(intensityOffset + 8 * i));
+        }
+        return peakList;
+    }
+
+    public int size() {
+        return spectrumNum;
+    }
+}
@@ -0,0 +1,176 @@
+package proteomics.Store;
+
+import proteomics.PIPIWrap;
+import proteomics.Types.ScanMeta;
+
+import java.util.*;
+
+public class ColumnarResultStore implements ResultStore {
+
+    private int scanNum = 0;
+    private int resultNum = 0;
+
+    // scan metadata, indexed by scanIdx.
+    private int[] scanNumArray = new int[1024];
+    private String[] scanIdArray = new String[1024];
+    private int[] precursorChargeArray = new int[1024];
+    private double[] precursorMassArray = new double[1024];
+    private String[] mgfTitleArray = new String[1024];
+    private int[] isotopeCorrectionNumArray = new int[1024];
+    private double[] ms1PearsonCorrelationCoefficientArray = new double[1024];
+
+    // PSM fields, indexed by scanIdx. They are allocated after all scans are added. A null peptide means that the scan doesn't have a result.
+    private String[] labellingArray;
+    private String[] peptideArray;
+    private double[] theoMassArray;
+    private int[] isDecoyArray;
+    private int[] globalRankArray;
+    private double[] normalizedCorrelationCoefficientArray;
+    private double[] scoreArray;
+    private double[] deltaLCnArray;
+    private double[] deltaCnArray;
+    private int[] matchedPeakNumArray;
+    private double[] ionFracArray;
+    private double[] matchedHighestIntensityFracArray;
+    private double[] explainedAaFracArray;
+    private String[] otherPtmPatternsArray;
+    private String[] aScoreArray;
+
+    @Override
+    public void addScan(ScanMeta scanMeta) {
+        if (scanMeta.scanIdx != scanNum) {
+            throw new IllegalArgumentException(String.format(Locale.US, "Scan %d has scanIdx %d, but %d is expected.", scanMeta.scanNum, scanMeta.scanIdx, scanNum));
+        }
+        if (scanNum == scanNumArray.length) {
+            int newLength = scanNum * 2;
+            scanNumArray = Arrays.copyOf(scanNumArray, newLength);
+            scanIdArray = Arrays.copyOf(scanIdArray, newLength);
+            precursorChargeArray = Arrays.copyOf(precursorChargeArray, newLength);
+            precursorMassArray = Arrays.copyOf(precursorMassArray, newLength);
+            mgfTitleArray = Arrays.copyOf(mgfTitleArray, newLength);
+            isotopeCorrectionNumArray = Arrays.copyOf(isotopeCorrectionNumArray, newLength);
+            ms1PearsonCorrelationCoefficientArray = Arrays.copyOf(ms1PearsonCorrelationCoefficientArray, newLength);
+        }
+        scanNumArray[scanNum] = scanMeta.scanNum;
+        scanIdArray[scanNum] = scanMeta.scanId;
+        precursorChargeArray[scanNum] = scanMeta.precursorCharge;
+        precursorMassArray[scanNum] = scanMeta.precursorMass;
+        mgfTitleArray[scanNum] = scanMeta.mgfTitle;
+        isotopeCorrectionNumArray[scanNum] = scanMeta.isotopeCorrectionNum;
+        ms1PearsonCorrelationCoefficientArray[scanNum] = scanMeta.ms1PearsonCorrelationCoefficient;
+        ++scanNum;
+    }
+
+    @Override
+    public void finishScans() {
+        labellingArray = new String[scanNum];
+        peptideArray = new String[scanNum];
+        theoMassArray = new double[scanNum];
+        isDecoyArray = new int[scanNum];
+        globalRankArray = new int[scanNum];
+        normalizedCorrelationCoefficientArray = new double[scanNum];
+        scoreArray = new double[scanNum];
+        deltaLCnArray = new double[scanNum];
+        deltaCnArray = new double[scanNum];
+        matchedPeakNumArray = new int[scanNum];
+        ionFracArray = new double[scanNum];
+        matchedHighestIntensityFracArray = new double[scanNum];
+        explainedAaFracArray = new double[scanNum];
+        otherPtmPatternsArray = new String[scanNum];
+        aScoreArray = new String[scanNum];
+    }
+
+    @Override
+    public int getScanNum() {
+        return scanNum;
+    }
+
+    @Override
+    public Iterator<ScanMeta> scanIterator() {
+        return new Iterator<ScanMeta>() {
+            private int scanIdx = 0;
+
+            @Override
+            public boolean hasNext() {
+                return scanIdx < scanNum;
+            }
+
+            @Override
+            public ScanMeta next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ScanMeta scanMeta = getScanMeta(scanIdx);
+                ++scanIdx;
+                return scanMeta;
+            }
+        };
+    }
+
+    @Override
+    public void addResult(PIPIWrap.Entry entry) {
+        int scanIdx = entry.scanIdx;
+        if (peptideArray[scanIdx] == null) {
+            ++resultNum;
+        }
+        labellingArray[scanIdx] = entry.labelling;
+        peptideArray[scanIdx] = entry.peptide;
+        theoMassArray[scanIdx] = entry.theoMass;
+        isDecoyArray[scanIdx] = entry.isDecoy;
+        globalRankArray[scanIdx] = entry.globalRank;
+        normalizedCorrelationCoefficientArray[scanIdx] = entry.normalizedCorrelationCoefficient;
+        scoreArray[scanIdx] = entry.score;
+        deltaLCnArray[scanIdx] = entry.deltaLCn;
+        deltaCnArray[scanIdx] = entry.deltaCn;
+        matchedPeakNumArray[scanIdx] = entry.matchedPeakNum;
+        ionFracArray[scanIdx] = entry.ionFrac;
+        matchedHighestIntensityFracArray[scanIdx] = entry.matchedHighestIntensityFrac;
+        explainedAaFracArray[scanIdx] = entry.explainedAaFrac;
+        otherPtmPatternsArray[scanIdx] = entry.otherPtmPatterns;
+        aScoreArray[scanIdx] = entry.aScore;
+    }
+
+    @Override
+    public void finishResults() {}
+
+    @Override
+    public int getResultNum() {
+        return resultNum;
+    }
+
+    @Override
+    public Iterator<PIPIWrap.Entry> resultIterator() {
+        return new Iterator<PIPIWrap.Entry>() {
+            private int scanIdx = nextResultIdx(0);
+
+            @Override
+            public boolean hasNext() {
+                return scanIdx < scanNum;
+            }
+
+            @Override
+            public PIPIWrap.Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PIPIWrap.Entry entry = new PIPIWrap.Entry(scanNumArray[scanIdx], scanIdArray[scanIdx], scanIdx, precursorChargeArray[scanIdx], precursorMassArray[scanIdx], mgfTitleArray[scanIdx], isotopeCorrectionNumArray[scanIdx], ms1PearsonCorrelationCoefficientArray[scanIdx], labellingArray[scanIdx], peptideArray[scanIdx], theoMassArray[scanIdx], isDecoyArray[scanIdx], globalRankArray[scanIdx], normalizedCorrelationCoefficientArray[scanIdx], scoreArray[scanIdx], deltaLCnArray[scanIdx], deltaCnArray[scanIdx], matchedPeakNumArray[scanIdx], ionFracArray[scanIdx], matchedHighestIntensityFracArray[scanIdx], explainedAaFracArray[scanIdx], otherPtmPatternsArray[scanIdx], aScoreArray[scanIdx]);
+                scanIdx = nextResultIdx(scanIdx + 1);
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public void close() {}
+
+    private ScanMeta getScanMeta(int scanIdx) {
+        return new ScanMeta(scanNumArray[scanIdx], scanIdArray[scanIdx], scanIdx, precursorChargeArray[scanIdx], precursorMassArray[scanIdx], mgfTitleArray[scanIdx], isotopeCorrectionNumArray[scanIdx], ms1PearsonCorrelationCoefficientArray[scanIdx]);
+    }
+
+    private int nextResultIdx(int scanIdx) {
+        while (scanIdx < scanNum && peptideArray[scanIdx] == null) {
+            ++scanIdx;
+        }
+        return scanIdx;
+    }
+}
@@ -0,0 +1,30 @@
+package proteomics.Store;
+
+import proteomics.PIPIWrap;
+import proteomics.Types.ScanMeta;
+
+import java.util.Iterator;
+
+public interface ResultStore {
+
+    // Scans are added by a single thread before searching.
+    void addScan(ScanMeta scanMeta) throws Exception;
+
+    void finishScans() throws Exception;
+
+    int getScanNum();
+
+    Iterator<ScanMeta> scanIterator() throws Exception;
+
+    // Results are added by a single thread (the one collecting the finished tasks).
+    void addResult(PIPIWrap.Entry entry) throws Exception;
+
+    void finishResults() throws Exception;
+
+    int getResultNum();
+
+    // Only the scans having a result are returned.
+    Iterator<PIPIWrap.Entry> resultIterator() throws Exception;
+
+    void close() throws Exception;
+}
@@ -0,0 +1,182 @@
+package proteomics.Store;
+
+import proteomics.PIPIWrap;
+import proteomics.Types.ScanMeta;
+
+import java.sql.*;
+import java.util.*;
+
+public class SqliteResultStore implements ResultStore {
+
+    private static final int sqlBatchSize = 1000;
+
+    private final String sqlPath;
+    private Connection sqlConnection;
+    private PreparedStatement scanPreparedStatement;
+    private PreparedStatement resultPreparedStatement;
+    private final List<Connection> readConnectionList = new LinkedList<>();
+    private int scanNum = 0;
+    private int resultNum = 0;
+
+    public SqliteResultStore(String sqlPath) throws Exception {
+        this.sqlPath = sqlPath;
+        Class.forName("org.sqlite.JDBC").newInstance();
+
+        sqlConnection = DriverManager.getConnection(sqlPath);
+        Statement sqlStatement = sqlConnection.createStatement();
+        sqlStatement.executeUpdate("PRAGMA journal_mode=WAL");
+        sqlStatement.executeUpdate("DROP TABLE IF EXISTS spectraTable");
+        sqlStatement.executeUpdate("CREATE TABLE spectraTable (scanNum INTEGER NOT NULL, scanId TEXT PRIMARY KEY, scanIdx INTEGER NOT NULL, precursorCharge INTEGER NOT NULL, precursorMass REAL NOT NULL, mgfTitle TEXT NOT NULL, isotopeCorrectionNum INTEGER NOT NULL, ms1PearsonCorrelationCoefficient REAL NOT NULL, labelling TEXT, peptide TEXT, theoMass REAL, isDecoy INTEGER, globalRank INTEGER, normalizedCorrelationCoefficient REAL, score REAL, deltaLCn REAL, deltaCn REAL, matchedPeakNum INTEGER, ionFrac REAL, matchedHighestIntensityFrac REAL, explainedAaFrac REAL, otherPtmPatterns TEXT, aScore TEXT)");
+        sqlStatement.close();
+
+        scanPreparedStatement = sqlConnection.prepareStatement("INSERT INTO spectraTable (scanNum, scanId, scanIdx, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        sqlConnection.setAutoCommit(false);
+    }
+
+    @Override
+    public void addScan(ScanMeta scanMeta) throws SQLException {
+        scanPreparedStatement.setInt(1, scanMeta.scanNum);
+        scanPreparedStatement.setString(2, scanMeta.scanId);
+        scanPreparedStatement.setInt(3, scanMeta.scanIdx);
+        scanPreparedStatement.setInt(4, scanMeta.precursorCharge);
+        scanPreparedStatement.setDouble(5, scanMeta.precursorMass);
+        scanPreparedStatement.setString(6, scanMeta.mgfTitle);
+        scanPreparedStatement.setInt(7, scanMeta.isotopeCorrectionNum);
+        scanPreparedStatement.setDouble(8, scanMeta.ms1PearsonCorrelationCoefficient);
+        scanPreparedStatement.executeUpdate();
+        ++scanNum;
+    }
+
+    @Override
+    public void finishScans() throws SQLException {
+        sqlConnection.commit();
+        scanPreparedStatement.close();
+        scanPreparedStatement = null;
+        resultPreparedStatement = sqlConnection.prepareStatement("REPLACE INTO spectraTable (scanNum, scanId, scanIdx, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, labelling, peptide, theoMass, isDecoy, globalRank, normalizedCorrelationCoefficient, score, deltaLCn, deltaCn, matchedPeakNum, ionFrac, matchedHighestIntensityFrac, explainedAaFrac, otherPtmPatterns, aScore) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    @Override
+    public int getScanNum() {
+        return scanNum;
+    }
+
+    @Override
+    public Iterator<ScanMeta> scanIterator() throws SQLException {
+        // Scans are read with their own connection. In the WAL mode, the reader keeps a consistent snapshot while the results are written through the other connection.
+        return new ResultSetIterator<ScanMeta>("SELECT scanNum, scanId, scanIdx, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient FROM spectraTable") {
+            @Override
+            ScanMeta read(ResultSet sqlResultSet) throws SQLException {
+                return new ScanMeta(sqlResultSet.getInt("scanNum"), sqlResultSet.getString("scanId"), sqlResultSet.getInt("scanIdx"), sqlResultSet.getInt("precursorCharge"), sqlResultSet.getDouble("precursorMass"), sqlResultSet.getString("mgfTitle"), sqlResultSet.getInt("isotopeCorrectionNum"), sqlResultSet.getDouble("ms1PearsonCorrelationCoefficient"));
+            }
+        };
+    }
+
+    @Override
+    public void addResult(PIPIWrap.Entry entry) throws SQLException {
+        resultPreparedStatement.setInt(1, entry.scanNum);
+        resultPreparedStatement.setString(2, entry.scanId);
+        resultPreparedStatement.setInt(3, entry.scanIdx);
+        resultPreparedStatement.setInt(4, entry.precursorCharge);
+        resultPreparedStatement.setDouble(5, entry.precursorMass);
+        resultPreparedStatement.setString(6, entry.mgfTitle);
+        resultPreparedStatement.setInt(7, entry.isotopeCorrectionNum);
+        resultPreparedStatement.setDouble(8, entry.ms1PearsonCorrelationCoefficient);
+        resultPreparedStatement.setString(9, entry.labelling);
+        resultPreparedStatement.setString(10, entry.peptide);
+        resultPreparedStatement.setDouble(11, entry.theoMass);
+        resultPreparedStatement.setInt(12, entry.isDecoy);
+        resultPreparedStatement.setInt(13, entry.globalRank);
+        resultPreparedStatement.setDouble(14, entry.normalizedCorrelationCoefficient);
+        resultPreparedStatement.setDouble(15, entry.score);
+        resultPreparedStatement.setDouble(16, entry.deltaLCn);
+        resultPreparedStatement.setDouble(17, entry.deltaCn);
+        resultPreparedStatement.setInt(18, entry.matchedPeakNum);
+        resultPreparedStatement.setDouble(19, entry.ionFrac);
+        resultPreparedStatement.setDouble(20, entry.matchedHighestIntensityFrac);
+        resultPreparedStatement.setDouble(21, entry.explainedAaFrac);
+        resultPreparedStatement.setString(22, entry.otherPtmPatterns);
+        resultPreparedStatement.setString(23, entry.aScore);
+        resultPreparedStatement.addBatch();
+        ++resultNum;
+        // Results are written in batches to keep the transaction overhead low.
+        if (resultNum % sqlBatchSize == 0) {
+            resultPreparedStatement.executeBatch();
+            sqlConnection.commit();
+        }
+    }
+
+    @Override
+    public void finishResults() throws SQLException {
+        resultPreparedStatement.executeBatch();
+        sqlConnection.commit();
+        sqlConnection.setAutoCommit(true);
+        resultPreparedStatement.close();
+        resultPreparedStatement = null;
+    }
+
+    @Override
+    public int getResultNum() {
+        return resultNum;
+    }
+
+    @Override
+    public Iterator<PIPIWrap.Entry> resultIterator() throws SQLException {
+        return new ResultSetIterator<PIPIWrap.Entry>("SELECT scanNum, scanId, scanIdx, precursorCharge, precursorMass, mgfTitle, isotopeCorrectionNum, ms1PearsonCorrelationCoefficient, labelling, peptide, theoMass, isDecoy, globalRank, normalizedCorrelationCoefficient, score, deltaLCn, deltaCn, matchedPeakNum, ionFrac, matchedHighestIntensityFrac, explainedAaFrac, otherPtmPatterns, aScore FROM spectraTable WHERE peptide IS NOT NULL") {
+            @Override
+            PIPIWrap.Entry read(ResultSet sqlResultSet) throws SQLException {
+                return new PIPIWrap.Entry(sqlResultSet.getInt("scanNum"), sqlResultSet.getString("scanId"), sqlResultSet.getInt("scanIdx"), sqlResultSet.getInt("precursorCharge"), sqlResultSet.getDouble("precursorMass"), sqlResultSet.getString("mgfTitle"), sqlResultSet.getInt("isotopeCorrectionNum"), sqlResultSet.getDouble("ms1PearsonCorrelationCoefficient"), sqlResultSet.getString("labelling"), sqlResultSet.getString("peptide"), sqlResultSet.getDouble("theoMass"), sqlResultSet.getInt("isDecoy"), sqlResultSet.getInt("globalRank"), sqlResultSet.getDouble("normalizedCorrelationCoefficient"), sqlResultSet.getDouble("score"), sqlResultSet.getDouble("deltaLCn"), sqlResultSet.getDouble("deltaCn"), sqlResultSet.getInt("matchedPeakNum"), sqlResultSet.getDouble("ionFrac"), sqlResultSet.getDouble("matchedHighestIntensityFrac"), sqlResultSet.getDouble("explainedAaFrac"), sqlResultSet.getString("otherPtmPatterns"), sqlResultSet.getString("aScore"));
+            }
+        };
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (Connection readConnection : readConnectionList) {
+            readConnection.close(); // also closes the statement and the result set.
+        }
+        readConnectionList.clear();
+        if (sqlConnection != null) {
+            sqlConnection.close();
+            sqlConnection = null;
+        }
+    }
+
+    private abstract class ResultSetIterator<T> implements Iterator<T> {
+
+        private final Connection readConnection;
+        private final ResultSet sqlResultSet;
+        private boolean hasNext;
+
+        ResultSetIterator(String query) throws SQLException {
+            readConnection = DriverManager.getConnection(sqlPath);
+            readConnectionList.add(readConnection);
+            sqlResultSet = readConnection.createStatement().executeQuery(query);
+            hasNext = sqlResultSet.next();
+        }
+
+        abstract T read(ResultSet sqlResultSet) throws SQLException;
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            try {
+                T t = read(sqlResultSet);
+                hasNext = sqlResultSet.next();
+                if (!hasNext) {
+                    readConnection.close();
+                    readConnectionList.remove(readConnection);
+                }
+                return t;
+            } catch (SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
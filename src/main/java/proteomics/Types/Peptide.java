@@ -1,6 +1,5 @@
 package proteomics.Types;
 
-import ProteomicsLibrary.Types.Coordinate;
 import proteomics.Segment.InferSegment;
 import ProteomicsLibrary.MassTool;
 
@@ -134,8 +133,7 @@ public class Peptide implements Comparable<Peptide> {
             varPtmContainingSeq = null;
             ptmContainingSeq = null;
 
-            String toString = ptmFreePeptide + "." + ptmMap.toString();
-            hashCode = toString.hashCode();
+            hashCode = 31 * ptmFreePeptide.hashCode() + ptmMap.hashCode();
         }
     }
 
@@ -166,35 +164,16 @@ public class Peptide implements Comparable<Peptide> {
     private String getVarPtmContainingSeq() {
         if (varPtmContainingSeq == null) {
             if (varPTMMap != null) {
-                StringBuilder sb = new StringBuilder(ptmFreePeptide.length() * 5);
-                int tempIdx = varPTMMap.firstKey().y;
-                if (tempIdx > 1) {
-                    sb.append(ptmFreePeptide.substring(0, tempIdx - 1));
-                }
-                int i = tempIdx - 1;
-                tempIdx = varPTMMap.lastKey().y;
-                while (i < ptmFreePeptide.length()) {
-                    boolean hasMod = false;
-                    if (tempIdx > i) {
-                        for (Coordinate co : varPTMMap.keySet()) {
-                            if (co.y - 1 == i) {
-                                sb.append(String.format(Locale.US, "%c(%.3f)", ptmFreePeptide.charAt(i), varPTMMap.get(co)));
-                                hasMod = true;
-                                ++i;
-                                break;
-                            }
-                        }
-                        if (!hasMod) {
-                            sb.append(ptmFreePeptide.charAt(i));
-                            ++i;
-                        }
+                StringBuilder sb = new StringBuilder(ptmFreePeptide.length() + varPTMMap.size() * 10);
+                int ptmIdx = 0;
+                for (int i = 0; i < ptmFreePeptide.length(); ++i) {
+                    if (ptmIdx < varPTMMap.size() && varPTMMap.getPosition(ptmIdx) == i) {
+                        sb.append(String.format(Locale.US, "%c(%.3f)", ptmFreePeptide.charAt(i), varPTMMap.getDeltaMass(ptmIdx)));
+                        ++ptmIdx;
                     } else {
-                        break;
+                        sb.append(ptmFreePeptide.charAt(i));
                     }
                 }
-                if (tempIdx < ptmFreePeptide.length()) {
-                    sb.append(ptmFreePeptide.substring(tempIdx));
-                }
                 varPtmContainingSeq = sb.toString();
             } else {
                 varPtmContainingSeq = ptmFreePeptide;
@@ -278,33 +257,38 @@ public class Peptide implements Comparable<Peptide> {
     }
 
     public int compareTo(Peptide peptide) {
-        if (score > peptide.getScore()) {
+        return compareTo(peptide.getScore(), peptide.getMatchedPeakNum(), peptide.getExplainedAaFrac(), peptide.getVarPTMNum(), peptide.getNormalizedCrossCorr(), peptide.isDecoy());
+    }
+
+    // compares this peptide with a peptide having the given properties, without building it.
+    public int compareTo(double otherScore, int otherMatchedPeakNum, double otherExplainedAaFrac, int otherVarPTMNum, double otherNormalizedCrossCorr, boolean otherIsDecoy) {
+        if (score > otherScore) {
             return 1;
-        } else if (score < peptide.getScore()) {
+        } else if (score < otherScore) {
             return -1;
         } else {
-            if (matchedPeakNum > peptide.getMatchedPeakNum()) {
+            if (matchedPeakNum > otherMatchedPeakNum) {
                 return 1;
-            } else if (matchedPeakNum < peptide.getMatchedPeakNum()) {
+            } else if (matchedPeakNum < otherMatchedPeakNum) {
                 return -1;
             } else {
-                if (explainedAaFrac > peptide.getExplainedAaFrac()) {
+                if (explainedAaFrac > otherExplainedAaFrac) {
                     return 1;
-                } else if (explainedAaFrac < peptide.getExplainedAaFrac()) {
+                } else if (explainedAaFrac < otherExplainedAaFrac) {
                     return -1;
                 } else {
-                    if (getVarPTMNum() < peptide.getVarPTMNum()) {
+                    if (getVarPTMNum() < otherVarPTMNum) {
                         return 1;
-                    } else if (getVarPTMNum() > peptide.getVarPTMNum()) {
+                    } else if (getVarPTMNum() > otherVarPTMNum) {
                         return -1;
-                    } else if (normalizedCrossCorrelationCoefficient > peptide.getNormalizedCrossCorr()) {
+                    } else if (normalizedCrossCorrelationCoefficient > otherNormalizedCrossCorr) {
                         return 1;
-                    } else if (normalizedCrossCorrelationCoefficient < peptide.getNormalizedCrossCorr()) {
+                    } else if (normalizedCrossCorrelationCoefficient < otherNormalizedCrossCorr) {
                         return -1;
                     } else {
-                        if (!isDecoy && peptide.isDecoy()) {
+                        if (!isDecoy && otherIsDecoy) {
                             return 1;
-                        } else if (isDecoy && !peptide.isDecoy()) {
+                        } else if (isDecoy && !otherIsDecoy) {
                             return -1;
                         } else{
                             return 0;
@@ -8,6 +8,7 @@ public class PeptidePTMPattern {
     public final String ptmFreePeptide;
 
     private TreeSet<Peptide> peptideTreeSet = new TreeSet<>(Comparator.reverseOrder());
+    private int triedPatternNum = 0; // the PTM patterns that have been scored.
 
     public PeptidePTMPattern(String ptmFreePeptide) {
         this.ptmFreePeptide = ptmFreePeptide;
@@ -22,6 +23,19 @@ public class PeptidePTMPattern {
         }
     }
 
+    // the same test as update(), for a peptide that has not been built yet.
+    public boolean canUpdate(double score, int matchedPeakNum, int varPTMNum, double normalizedCrossCorr, boolean isDecoy) {
+        return peptideTreeSet.size() < 5 || peptideTreeSet.last().compareTo(score, matchedPeakNum, -1, varPTMNum, normalizedCrossCorr, isDecoy) < 0;
+    }
+
+    public void addTriedPatternNum(int num) {
+        triedPatternNum += num;
+    }
+
+    public int getTriedPatternNum() {
+        return triedPatternNum;
+    }
+
     public TreeSet<Peptide> getPeptideTreeSet() {
         return peptideTreeSet;
     }
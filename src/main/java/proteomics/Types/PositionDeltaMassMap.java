@@ -3,36 +3,100 @@ package proteomics.Types;
 
 import ProteomicsLibrary.Types.Coordinate;
 
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.TreeMap;
 
-public class PositionDeltaMassMap extends TreeMap<Coordinate, Double> {
+public class PositionDeltaMassMap { // variable PTMs of a peptide. Each PTM sits on one position, i.e. Coordinate(position, position + 1).
 
     public final int peptideLength;
 
+    private int[] positionArray = new int[2]; // ascending
+    private double[] deltaMassArray = new double[2];
+    private int size = 0;
+    private int hashCode = 1;
+
     public PositionDeltaMassMap(int peptideLength) {
-        super();
         this.peptideLength = peptideLength;
     }
 
+    public void put(int position, double deltaMass) {
+        int idx = Arrays.binarySearch(positionArray, 0, size, position);
+        if (idx >= 0) {
+            deltaMassArray[idx] = deltaMass;
+        } else {
+            idx = -idx - 1;
+            if (size == positionArray.length) {
+                positionArray = Arrays.copyOf(positionArray, size * 2);
+                deltaMassArray = Arrays.copyOf(deltaMassArray, size * 2);
+            }
+            System.arraycopy(positionArray, idx, positionArray, idx + 1, size - idx);
+            System.arraycopy(deltaMassArray, idx, deltaMassArray, idx + 1, size - idx);
+            positionArray[idx] = position;
+            deltaMassArray[idx] = deltaMass;
+            ++size;
+        }
+
+        // same positions and same masses at three decimals, the precision of toString().
+        hashCode = 1;
+        for (int i = 0; i < size; ++i) {
+            hashCode = 31 * (31 * hashCode + positionArray[i]) + Long.hashCode(Math.round(deltaMassArray[i] * 1000));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getPosition(int i) {
+        return positionArray[i];
+    }
+
+    public double getDeltaMass(int i) {
+        return deltaMassArray[i];
+    }
+
+    public boolean containsPosition(int position) {
+        return Arrays.binarySearch(positionArray, 0, size, position) >= 0;
+    }
+
+    public double get(int position) { // NaN if there is no PTM on the position.
+        int idx = Arrays.binarySearch(positionArray, 0, size, position);
+        return idx >= 0 ? deltaMassArray[idx] : Double.NaN;
+    }
+
+    public TreeMap<Coordinate, Double> toTreeMap() {
+        TreeMap<Coordinate, Double> treeMap = new TreeMap<>();
+        for (int i = 0; i < size; ++i) {
+            treeMap.put(new Coordinate(positionArray[i], positionArray[i] + 1), deltaMassArray[i]);
+        }
+        return treeMap;
+    }
+
     public String toString() {
-        StringBuilder sb = new StringBuilder(1000);
-        for (Coordinate co : this.keySet()) {
-            sb.append(String.format(Locale.US, "%.3f", this.get(co)));
+        StringBuilder sb = new StringBuilder(size * 20);
+        for (int i = 0; i < size; ++i) {
+            int x = positionArray[i];
+            int y = x + 1;
+            sb.append(String.format(Locale.US, "%.3f", deltaMassArray[i]));
             sb.append("@");
-            if ((co.x == 0) || (co.x == 1)) {
+            if ((x == 0) || (x == 1)) {
                 sb.append("([01]-");
-                sb.append(co.y);
+                sb.append(y);
                 sb.append(")");
-            } else if ((co.y == peptideLength) || (co.y == peptideLength - 1)){
+            } else if ((y == peptideLength) || (y == peptideLength - 1)){
                 sb.append("(");
-                sb.append(co.x);
+                sb.append(x);
                 sb.append("-[");
                 sb.append(peptideLength - 1);
                 sb.append(peptideLength);
                 sb.append("])");
             } else {
-                sb.append(co.toString());
+                sb.append(new Coordinate(x, y).toString());
             }
             sb.append(";");
         }
@@ -40,25 +104,32 @@ public class PositionDeltaMassMap extends TreeMap<Coordinate, Double> {
     }
 
     public int hashCode() {
-        return this.toString().hashCode();
+        return hashCode;
     }
 
     public boolean equals(Object other) {
         if (other instanceof PositionDeltaMassMap) {
             PositionDeltaMassMap temp = (PositionDeltaMassMap) other;
-            return temp.hashCode() == this.hashCode();
+            if (temp.size != size || temp.hashCode != hashCode) {
+                return false;
+            }
+            for (int i = 0; i < size; ++i) {
+                if (temp.positionArray[i] != positionArray[i] || Math.round(temp.deltaMassArray[i] * 1000) != Math.round(deltaMassArray[i] * 1000)) {
+                    return false;
+                }
+            }
+            return true;
         } else {
             return false;
         }
     }
 
     public PositionDeltaMassMap clone() {
-        super.clone();
         PositionDeltaMassMap other = new PositionDeltaMassMap(peptideLength);
-        other.clear();
-        for (Coordinate co : this.keySet()) {
-            other.put(co, this.get(co));
-        }
+        other.positionArray = Arrays.copyOf(positionArray, positionArray.length);
+        other.deltaMassArray = Arrays.copyOf(deltaMassArray, deltaMassArray.length);
+        other.size = size;
+        other.hashCode = hashCode;
         return other;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,24 @@
+package proteomics.Types;
+
+public class ScanMeta {
+
+    public final int scanNum;
+    public final String scanId;
+    public final int scanIdx; // the ordinal of the spectrum in the spectrum store.
+    public final int precursorCharge;
+    public final double precursorMass;
+    public final String mgfTitle;
+    public final int isotopeCorrectionNum;
+    public final double ms1PearsonCorrelationCoefficient;
+
+    public ScanMeta(int scanNum, String scanId, int scanIdx, int precursorCharge, double precursorMass, String mgfTitle, int isotopeCorrectionNum, double ms1PearsonCorrelationCoefficient) {
+        this.scanNum = scanNum;
+        this.scanId = scanId;
+        this.scanIdx = scanIdx;
+        this.precursorCharge = precursorCharge;
+        this.precursorMass = precursorMass;
+        this.mgfTitle = mgfTitle;
+        this.isotopeCorrectionNum = isotopeCorrectionNum;
+        this.ms1PearsonCorrelationCoefficient = ms1PearsonCorrelationCoefficient;
+    }
+}
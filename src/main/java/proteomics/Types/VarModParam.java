@@ -1,5 +1,6 @@
 package proteomics.Types;
 
+import java.util.Locale;
 
 public class VarModParam {
 
@@ -7,6 +8,7 @@ public class VarModParam {
     public final char aa;
     public final int priority; // 1 = high; 0 = low.
     public final boolean onlyProteinTerminalIfnc;
+    public final double roundedMass; // the mass as written in a modified sequence, e.g. "M(15.995)".
 
     private final int hashCode;
 
@@ -15,6 +17,7 @@ public class VarModParam {
         this.aa = aa;
         this.priority = priority;
         this.onlyProteinTerminalIfnc = onlyProteinTerminalIfnc;
+        roundedMass = Double.valueOf(String.format(Locale.US, "%.3f", mass));
 
         String toString = Math.round(mass * 1000) + "@" + aa;
         hashCode = toString.hashCode();